@@ -0,0 +1,103 @@
+package equestria.canterlot.lunasdreamwalk.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import equestria.canterlot.lunasdreamwalk.generator.SaveGenerator;
+import equestria.canterlot.lunasdreamwalk.util.ByteSink;
+import equestria.canterlot.lunasdreamwalk.xml.MarkupDomWriter;
+import equestria.canterlot.lunasdreamwalk.xml.MarkupWriter;
+
+/**
+ * Serializing a savegame DOM with MarkupDomWriter, as DomIndex does, against
+ * the identity Transformer that the editor of version 1.6 used.
+ *
+ * The setup fails if the two don't write the same bytes for the generated
+ * savegame, so every run checks the equivalence as well.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class DomWriterBenchmark {
+
+    /**
+     * Clearables per map zone
+     */
+    @Param({ "1000", "100000" })
+    public int clearables;
+
+    private Document document;
+    private int size;
+
+    @Setup
+    public void setUp() throws Exception {
+        SaveGenerator generator = new SaveGenerator();
+        generator.setMapZones(4);
+        generator.setPonies(clearables / 10);
+        generator.setClearables(clearables);
+        generator.setParasprites(clearables / 20);
+        byte[] xml = generator.generateXML().toByteArray();
+
+        document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+        size = xml.length;
+
+        // mutate the DOM like the editor would
+        document.getDocumentElement().getElementsByTagName("PlayerData").item(0).getAttributes().getNamedItem("Coins").setNodeValue("12345");
+
+        byte[] expected = transformer().toByteArray();
+        byte[] actual = markupDomWriter().toByteArray();
+        if(!Arrays.equals(expected, actual)) {
+            throw new IllegalStateException("MarkupDomWriter and the Transformer differ at byte " + mismatch(expected, actual));
+        }
+    }
+
+    private static int mismatch(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for(int i = 0; i < length; i++) {
+            if(a[i] != b[i]) {
+                return i;
+            }
+        }
+
+        return length;
+    }
+
+    @Benchmark
+    public ByteSink transformer() throws Exception {
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+
+        ByteSink sink = new ByteSink(size);
+        transformer.transform(new DOMSource(document), new StreamResult(sink.asWriter()));
+        return sink;
+    }
+
+    @Benchmark
+    public ByteSink markupDomWriter() {
+        ByteSink sink = new ByteSink(size);
+        new MarkupDomWriter(new MarkupWriter(sink)).write(document);
+        return sink;
+    }
+}
@@ -0,0 +1,209 @@
+package equestria.canterlot.lunasdreamwalk.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import equestria.canterlot.lunasdreamwalk.SimpleEditor;
+import equestria.canterlot.lunasdreamwalk.generator.SaveGenerator;
+import equestria.canterlot.lunasdreamwalk.util.ByteSink;
+import equestria.canterlot.lunasdreamwalk.util.SaveFileAdapter;
+import equestria.canterlot.lunasdreamwalk.util.Util;
+
+/**
+ * Runs the whole load and store path of the GUI on generated savegames of
+ * different sizes and breaks wall time and allocated bytes down by stage, so
+ * a regression shows up in the stage that caused it.
+ *
+ * This is not a JMH benchmark, every stage is measured once per round:
+ *
+ * java -Djava.awt.headless=true -cp target/benchmarks.jar
+ * equestria.canterlot.lunasdreamwalk.benchmark.PipelineBenchmark [rounds]
+ * [clearables per zone...]
+ *
+ */
+public class PipelineBenchmark {
+
+    private static final byte[] KEY = Util.hexStringToByteArray("00112233445566778899AABBCCDDEEFF");
+
+    private static final int WARMUP_ROUNDS = 2;
+
+    private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+    /**
+     * Wall time and allocated bytes of each stage over all rounds
+     */
+    private final Map<String, long[]> nanos = new LinkedHashMap<String, long[]>();
+    private final Map<String, long[]> bytes = new LinkedHashMap<String, long[]>();
+    private final int rounds;
+
+    private String stage;
+    private long stageStart;
+    private long stageAllocated;
+    private int round;
+
+    private PipelineBenchmark(int rounds) {
+        this.rounds = rounds;
+    }
+
+    private static com.sun.management.ThreadMXBean threads() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if(threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+            if(allocation.isThreadAllocatedMemorySupported()) {
+                allocation.setThreadAllocatedMemoryEnabled(true);
+                return allocation;
+            }
+        }
+
+        return null;
+    }
+
+    private static long allocated() {
+        return THREADS == null ? 0 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private void start(String name) {
+        end();
+
+        stage = name;
+        stageAllocated = allocated();
+        stageStart = System.nanoTime();
+    }
+
+    private void end() {
+        if(stage == null) {
+            return;
+        }
+
+        long time = System.nanoTime() - stageStart;
+        long allocation = allocated() - stageAllocated;
+
+        if(round >= 0) {
+            if(!nanos.containsKey(stage)) {
+                nanos.put(stage, new long[rounds]);
+                bytes.put(stage, new long[rounds]);
+            }
+            nanos.get(stage)[round] = time;
+            bytes.get(stage)[round] = allocation;
+        }
+
+        stage = null;
+    }
+
+    private void runOnce(Path input, Path output) throws Exception {
+        start("open");
+        SaveFileAdapter save = new SaveFileAdapter(input);
+
+        start("sanityCheck");
+        check(save.sanityCheck(), "sanity check");
+
+        start("decryptFirstLayer");
+        save.setFirstKey(KEY);
+        check(save.decryptFirstLayer(), "first layer");
+
+        start("decryptSecondLayer");
+        check(save.decryptSecondLayer(), "second layer");
+
+        start("SimpleEditor (parse + UI)");
+        SimpleEditor editor = new SimpleEditor(save.getXMLBuffer());
+
+        start("applyAllChanges");
+        editor.applyAllChanges();
+
+        start("generateSavegame");
+        ByteSink content = editor.generateSavegame();
+
+        start("encryptSecondLayer");
+        save.setXMLContent(content.buffer(), content.size());
+        check(save.encryptSecondLayer(), "second layer");
+
+        start("encryptFirstLayer");
+        save.setFirstKey(KEY);
+        check(save.encryptFirstLayer(), "first layer");
+
+        start("write");
+        Files.write(output, save.fileContent());
+        end();
+    }
+
+    private static void check(boolean success, String what) {
+        if(!success) {
+            throw new IllegalStateException("Failed: " + what);
+        }
+    }
+
+    private void run(Path input, Path output) throws Exception {
+        for(round = -WARMUP_ROUNDS; round < rounds; round++) {
+            runOnce(input, output);
+        }
+    }
+
+    private void print(String title) {
+        System.out.println(title);
+        System.out.println(String.format("  %-28s %12s %14s", "stage", "median ms", "allocated MB"));
+
+        long totalNanos = 0, totalBytes = 0;
+        for(String name : nanos.keySet()) {
+            long time = median(nanos.get(name));
+            long allocation = median(bytes.get(name));
+            totalNanos += time;
+            totalBytes += allocation;
+
+            System.out.println(String.format("  %-28s %12.2f %14.2f", name, time / 1e6, allocation / (1024.0 * 1024.0)));
+        }
+
+        System.out.println(String.format("  %-28s %12.2f %14.2f", "total", totalNanos / 1e6, totalBytes / (1024.0 * 1024.0)));
+        System.out.println();
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+
+        List<Integer> sizes = new ArrayList<Integer>();
+        for(int i = 1; i < args.length; i++) {
+            sizes.add(Integer.parseInt(args[i]));
+        }
+        if(sizes.isEmpty()) {
+            sizes.addAll(Arrays.asList(1000, 10000, 100000));
+        }
+
+        if(THREADS == null) {
+            System.out.println("Allocated bytes are not supported by this JVM and are reported as 0");
+        }
+
+        Path directory = Files.createTempDirectory("pipeline");
+        try {
+            for(int clearables : sizes) {
+                SaveGenerator generator = new SaveGenerator();
+                generator.setMapZones(2);
+                generator.setPonies(clearables / 10);
+                generator.setClearables(clearables);
+                generator.setParasprites(clearables / 20);
+
+                Path input = directory.resolve("input.dat");
+                Path output = directory.resolve("output.dat");
+                generator.write(input, KEY);
+
+                PipelineBenchmark benchmark = new PipelineBenchmark(rounds);
+                benchmark.run(input, output);
+                benchmark.print(String.format("%d clearables per zone, %.2f MB file, %d rounds", clearables, Files.size(input) / (1024.0 * 1024.0), rounds));
+
+                Files.delete(input);
+                Files.deleteIfExists(output);
+            }
+        } finally {
+            Files.delete(directory);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package equestria.canterlot.lunasdreamwalk.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import equestria.canterlot.lunasdreamwalk.util.Util;
+
+/**
+ * Throughput of the crypto and codec primitives in Util.
+ *
+ * The payload is random, because that is what the codecs get to see in a
+ * real savegame: the xml is encrypted before it is compressed.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g" })
+public class UtilBenchmark {
+
+    @Param({ "1024", "65536", "1048576", "16777216", "67108864" })
+    public int size;
+
+    private byte[] key;
+    private byte[] payload;
+    private byte[] encrypted;
+    private byte[] compressed;
+    private byte[] ascii;
+    private int[] ints;
+    private String hex;
+
+    @Setup
+    public void setUp() throws Exception {
+        Random random = new Random(42);
+
+        key = new byte[16];
+        random.nextBytes(key);
+
+        payload = new byte[size];
+        random.nextBytes(payload);
+
+        ascii = new byte[size];
+        for(int i = 0; i < size; i++) {
+            ascii[i] = (byte) (' ' + random.nextInt(95));
+        }
+
+        encrypted = Util.encrypt(payload, key);
+        compressed = Util.compress(payload);
+        ints = Util.bytesToInts(payload);
+        hex = Util.byteArrayToHexString(payload);
+    }
+
+    @Benchmark
+    public byte[] encrypt() {
+        return Util.encrypt(payload, key);
+    }
+
+    @Benchmark
+    public byte[] decrypt() {
+        return Util.decrypt(encrypted, key);
+    }
+
+    @Benchmark
+    public byte[] compress() throws Exception {
+        return Util.compress(payload);
+    }
+
+    @Benchmark
+    public byte[] decompress() throws Exception {
+        return Util.decompress(compressed);
+    }
+
+    @Benchmark
+    public byte[] crc32() {
+        return Util.CRC32(payload);
+    }
+
+    @Benchmark
+    public byte[] md5() {
+        return Util.md5(payload);
+    }
+
+    @Benchmark
+    public int[] bytesToInts() {
+        return Util.bytesToInts(payload);
+    }
+
+    @Benchmark
+    public byte[] intsToBytes() {
+        return Util.intsToBytes(ints);
+    }
+
+    @Benchmark
+    public byte[] hexStringToByteArray() {
+        return Util.hexStringToByteArray(hex);
+    }
+
+    @Benchmark
+    public String byteArrayToHexString() {
+        return Util.byteArrayToHexString(payload);
+    }
+
+    @Benchmark
+    public String asciiByteArrayToString() {
+        return Util.ASCIIByteArrayToString(ascii);
+    }
+}
@@ -21,7 +21,7 @@ public class HelpText extends JPanel {
         this.setBorder(new EmptyBorder(5, 5, 5, 5));
         this.add(new JLabel("Android users need to use their IMEI (15 digits) or MEID (18 digits or 14 digits and letters 'A-F') to decrypt savegames."));
         this.add(new JLabel("If your Android device has no IMEI/MEID (e.g. a Tablet), use your 'Android_Id' (16 digits and letters 'A-F')."));
-        this.add(new JLabel("If it doesn't work, try switching between lowecase and uppercase characters. The input is case-sensitive."));
+        this.add(new JLabel("Other forms of your id, like uppercase and lowercase characters or the other MEID format, are tried automatically."));
         this.add(new JLabel("iPhone/iPad users need to use their GLUID instead decrypt savegames. Google to find out where and how to find it."));
 
         this.add(new JLabel("I strongly suggest making backups of your savegames before editing."));
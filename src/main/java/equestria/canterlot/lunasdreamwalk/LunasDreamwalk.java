@@ -7,15 +7,15 @@ import java.awt.Insets;
 import java.awt.Label;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
 import javax.swing.JFileChooser;
@@ -23,12 +23,21 @@ import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 import javax.swing.filechooser.FileNameExtensionFilter;
+import equestria.canterlot.lunasdreamwalk.PipelineWorker.Failure;
+import equestria.canterlot.lunasdreamwalk.instrumentation.Stage;
+import equestria.canterlot.lunasdreamwalk.instrumentation.StageSummary;
+import equestria.canterlot.lunasdreamwalk.keys.KeyCandidate;
+import equestria.canterlot.lunasdreamwalk.keys.KeyDerivation;
+import equestria.canterlot.lunasdreamwalk.keys.KeyResolver;
+import equestria.canterlot.lunasdreamwalk.keys.Keyring;
+import equestria.canterlot.lunasdreamwalk.util.ByteSink;
 import equestria.canterlot.lunasdreamwalk.util.SaveFileAdapter;
 import equestria.canterlot.lunasdreamwalk.util.Util;
 
@@ -45,7 +54,8 @@ public class LunasDreamwalk extends JFrame {
 
     private static final String version = "1.6";
 
-    private JButton load, retry, save;
+    private JButton load, retry, save, cancel;
+    private JProgressBar progress;
     private JTextField imeiGluid, key, fileLocation;
     private JTextArea xml;
 
@@ -54,10 +64,19 @@ public class LunasDreamwalk extends JFrame {
 
     private File selectedFile = null;
     private SaveFileAdapter saveFileAdapter = null;
+    private File loadedFile = null;
+    private boolean loadedFileOverwritten = false;
+    private byte[] loadedKey = null;
+    private Keyring keyring = null;
 
     private JPanel editorPanel;
     private SimpleEditor simpleEditor;
 
+    /**
+     * The operation that runs in the background, if any
+     */
+    private PipelineWorker<?> worker;
+
     public LunasDreamwalk() {
         this.setTitle("Luna's Dreamwalk v" + version + " (Savegame Editor for Gameloft MLP Game)");
         this.setSize(800, 600);
@@ -68,6 +87,8 @@ public class LunasDreamwalk extends JFrame {
         // assign listeners
         assignActionsAndListeners();
 
+        loadKeyring();
+
     }
 
     /**
@@ -96,6 +117,15 @@ public class LunasDreamwalk extends JFrame {
             }
         });
 
+        cancel.addActionListener(new ActionListener() {
+
+            public void actionPerformed(ActionEvent e) {
+                if(worker != null) {
+                    worker.requestCancel();
+                }
+            }
+        });
+
         save.addActionListener(new ActionListener() {
 
             public void actionPerformed(ActionEvent e) {
@@ -123,11 +153,12 @@ public class LunasDreamwalk extends JFrame {
             }
 
             public void eval() {
-                byte[] tmp = deriveKeyFromIMEIorGLUID(imeiGluid.getText());
+                byte[] tmp = KeyDerivation.deriveKeyFromIMEIorGLUID(imeiGluid.getText());
 
                 if(tmp == null) {
                     key.setText("Invalid IMEI/MEID/Android_Id/GLUID");
                     enableFileButtons(false);
+                    enableLoadButton();
                 } else {
                     key.setText(Util.byteArrayToHexString(tmp));
                     enableFileButtons(true);
@@ -148,77 +179,279 @@ public class LunasDreamwalk extends JFrame {
         this.retry.setEnabled(enable);
     }
 
+    /**
+     * Savegames can be loaded without an id as long as the keyring has keys
+     */
+    private void enableLoadButton() {
+        if(this.keyring != null && !this.keyring.isEmpty()) {
+            this.load.setEnabled(true);
+        }
+    }
+
     /**
      * Parse the content of a file, hopefully ending up with a xml-Tree of the
-     * savegame file's content in a visual editor
+     * savegame file's content in a visual editor. This runs in the background,
+     * only the finished editor is installed on the event dispatch thread.
      * 
      * @param inputFile
      */
     private void parseFile(File inputFile) {
+        startOperation(new Loader(inputFile, imeiGluid.getText(), key.getText()));
+    }
 
-        int archiveSize;
-        byte saveFileContent[] = null;
+    /**
+     * Print the stage timings of an operation to the console, to see where
+     * the time went when loading or saving is slow
+     */
+    private static void printSummary(String operation, StageSummary summary) {
+        if(summary.isEmpty()) {
+            return;
+        }
 
-        {
-            InputStream is = null;
-            archiveSize = (int) inputFile.length();
+        System.out.println(operation);
+        summary.print(System.out);
+    }
+
+    /**
+     * Loads a savegame in the background: decrypt both layers and build the
+     * editor. The keyring is only read here, it is changed in done() once the
+     * key is known to work.
+     */
+    private class Loader extends PipelineWorker<SimpleEditor> {
+
+        private final File inputFile;
+        private final String id;
+        private final String typedKey;
+
+        private SaveFileAdapter save;
+        private KeyCandidate candidate;
+        private Exception editorError;
+
+        Loader(File inputFile, String id, String typedKey) {
+            super(progress, "read file", "sanityCheck", "resolveKey", "decryptFirstLayer", "decryptSecondLayer", "parse", "build editor");
+            this.inputFile = inputFile;
+            this.id = id;
+            this.typedKey = typedKey;
+        }
+
+        @Override
+        protected SimpleEditor runPipeline() throws Exception {
             try {
-                is = new BufferedInputStream(new FileInputStream(inputFile));
-            } catch(FileNotFoundException e) {
-                showErrorMessage("File " + inputFile.getAbsolutePath() + " not found");
-                return;
+                save = new SaveFileAdapter(inputFile.toPath());
+            } catch(NoSuchFileException e) {
+                throw new Failure("File " + inputFile.getAbsolutePath() + " not found");
+            } catch(IOException e) {
+                throw new Failure("Couldn't open Savegame " + e.getMessage());
+            }
+
+            if(!save.sanityCheck()) {
+                throw new Failure("The savegame file seems to be invalid");
+            }
+
+            candidate = findKey(save, id);
+
+            if(candidate == null) {
+                throw new Failure("Couldn't decrypt first security layer of file with any form of your id or the keys of the keyring. Is your IMEI/MEID/Android_Id/GLUID correct?");
+            }
+
+            if(isCancelRequested()) {
+                return null;
+            }
+
+            save.setFirstKey(candidate.getKey());
+
+            if(!save.decryptFirstLayer()) {
+                throw new Failure("Couldn't decrypt first security layer of file. Is your IMEI/GLUID correct?");
+            }
+
+            if(isCancelRequested()) {
+                return null;
+            }
+
+            if(!save.decryptSecondLayer()) {
+                throw new Failure("Couldn't decrypt second security layer of file. Maybe the savegame has a different protection scheme?");
+            }
+
+            if(isCancelRequested()) {
+                return null;
             }
 
-            saveFileContent = new byte[archiveSize];
             try {
-                is.read(saveFileContent);
-                is.close();
-            } catch(IOException e) {
-                showErrorMessage("Couldn't read file content of " + inputFile.getAbsolutePath());
+                return new SimpleEditor(save.getXMLBuffer());
+            } catch(Exception e) {
+                editorError = e;
+                return null;
+            }
+        }
+
+        @Override
+        protected void done() {
+            finishOperation();
+            printSummary("Loaded " + inputFile.getAbsolutePath(), getSummary());
+
+            SimpleEditor editor;
+            try {
+                editor = finish(this);
+            } catch(Failure e) {
+                showErrorMessage(e.getMessage());
+                return;
+            }
+
+            if(editor == null && editorError == null) {
+                // cancelled
                 return;
             }
+
+            String success = "Success";
+            if(!Util.byteArrayToHexString(candidate.getKey()).equals(typedKey)) {
+                // show the id that worked, even if it isn't one the key field
+                // would derive by itself
+                imeiGluid.setText(candidate.getIdentifier());
+                key.setText(Util.byteArrayToHexString(candidate.getKey()));
+                enableFileButtons(true);
+                success = "Success, using the key of " + candidate;
+            }
+
+            if(keyring != null) {
+                keyring.remember(save, candidate.getKey());
+                saveKeyring();
+            }
+
+            saveFileAdapter = save;
+            loadedFile = inputFile;
+            loadedFileOverwritten = false;
+            loadedKey = candidate.getKey();
+
+            editorPanel.removeAll();
+            if(editor != null) {
+                simpleEditor = editor;
+                editorPanel.add(simpleEditor);
+            } else {
+                showErrorMessage("XML Invalid, no simple Editor available: " + editorError.getClass().toString() + ": " + editorError.getMessage());
+                xml.setText(saveFileAdapter.getXMLContent());
+                editorPanel.add(xml);
+                editorError.printStackTrace();
+            }
+            editorPanel.revalidate();
+            showInfoMessage(success);
         }
+    }
 
-        SaveFileAdapter save;
+    private static boolean isSameFile(File a, File b) {
         try {
-            save = new SaveFileAdapter(saveFileContent);
+            return a != null && b != null && a.exists() && b.exists() && Files.isSameFile(a.toPath(), b.toPath());
         } catch(IOException e) {
-            showErrorMessage("Couldn't open Savegame " + e.getMessage());
-            return;
+            return false;
         }
+    }
 
-        if(!save.sanityCheck()) {
-            showErrorMessage("The savegame file seems to be invalid");
-            return;
+    /**
+     * Get the result of a finished worker
+     * 
+     * @return the result, null if the worker stopped on a cancel request
+     * @throws Failure
+     *             with a message for the user if the worker failed
+     */
+    private static <T> T finish(PipelineWorker<T> worker) throws Failure {
+        try {
+            return worker.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch(ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof Failure) {
+                throw (Failure) cause;
+            }
+
+            cause.printStackTrace();
+            throw new Failure("Unexpected error: " + cause.getClass().getName() + ": " + cause.getMessage());
         }
+    }
 
-        this.saveFileAdapter = save;
+    /**
+     * Disable everything that would start another operation and run a worker
+     */
+    private void startOperation(PipelineWorker<?> worker) {
+        this.worker = worker;
 
-        this.saveFileAdapter.setFirstKey(Util.hexStringToByteArray(key.getText()));
+        enableFileButtons(false);
+        this.load.setEnabled(false);
+        this.imeiGluid.setEnabled(false);
+        this.cancel.setEnabled(true);
 
-        if(!this.saveFileAdapter.decryptFirstLayer()) {
-            showErrorMessage("Couldn't decrypt first security layer of file. Is your IMEI/GLUID correct?");
-            return;
+        worker.execute();
+    }
+
+    /**
+     * Enable the buttons again after a worker is done
+     */
+    private void finishOperation() {
+        this.worker = null;
+
+        this.progress.setValue(0);
+        this.progress.setString("");
+        this.cancel.setEnabled(false);
+        this.imeiGluid.setEnabled(true);
+
+        enableFileButtons(KeyDerivation.deriveKeyFromIMEIorGLUID(imeiGluid.getText()) != null);
+        enableLoadButton();
+    }
+
+    /**
+     * Find the key of a savegame: a file the keyring has seen before is
+     * recognized right away, otherwise all forms of the typed id and the keys
+     * of the keyring that were used last are probed at once. The older keys
+     * of the keyring are only probed if none of these fits.
+     * 
+     * @return the key or null if none fits
+     */
+    private KeyCandidate findKey(SaveFileAdapter save, String id) throws InterruptedException {
+        if(this.keyring != null) {
+            KeyCandidate known = this.keyring.recognize(save);
+            if(known != null) {
+                return known;
+            }
         }
 
-        if(!this.saveFileAdapter.decryptSecondLayer()) {
-            showErrorMessage("Couldn't decrypt second security layer of file. Maybe the savegame has a different protection scheme?");
-            return;
+        List<KeyCandidate> candidates = new ArrayList<KeyCandidate>(KeyCandidate.expand(id));
+        List<KeyCandidate> recent = Collections.emptyList();
+        if(this.keyring != null) {
+            recent = this.keyring.getRecentKeys(Keyring.MAX_PROBED_KEYS);
+            candidates.addAll(recent);
+        }
+
+        KeyCandidate found = new KeyResolver().resolve(save, candidates);
+        if(found == null && this.keyring != null) {
+            List<KeyCandidate> older = new ArrayList<KeyCandidate>(this.keyring.getKeys());
+            older.removeAll(recent);
+            found = new KeyResolver().resolve(save, older);
         }
 
-        this.editorPanel.removeAll();
+        return found;
+    }
+
+    /**
+     * Open the keyring of the user. If it can't be read it is left alone and
+     * not used at all, rather than overwriting it.
+     */
+    private void loadKeyring() {
         try {
-            this.simpleEditor = new SimpleEditor(this.saveFileAdapter.getXMLContent());
-            this.editorPanel.add(this.simpleEditor);
-        } catch(Exception e) {
-            showErrorMessage("XML Invalid, no simple Editor available: " + e.getClass().toString() + ": " + e.getMessage());
-            this.xml.setText(this.saveFileAdapter.getXMLContent());
-            this.editorPanel.add(this.xml);
-            e.printStackTrace();
+            this.keyring = Keyring.load(Keyring.defaultLocation());
+        } catch(IOException e) {
+            System.err.println("Couldn't read keyring, it won't be used: " + e.getMessage());
+            this.keyring = null;
+        }
+
+        enableLoadButton();
+    }
 
+    private void saveKeyring() {
+        try {
+            this.keyring.save();
+        } catch(IOException e) {
+            System.err.println("Couldn't write keyring " + this.keyring.getFile() + ": " + e.getMessage());
         }
-        this.editorPanel.revalidate();
-        showInfoMessage("Success");
     }
 
     /**
@@ -242,7 +475,9 @@ public class LunasDreamwalk extends JFrame {
 
     /**
      * Apply all changes and convert the data back into a (hopefully) valid
-     * savegame.
+     * savegame. The changes are read from the editor right away, the rest runs
+     * in the background. If nothing was changed and the key is the same, the
+     * loaded file is written as it is.
      * 
      * @param outputFile
      */
@@ -254,89 +489,131 @@ public class LunasDreamwalk extends JFrame {
             return;
         }
 
-        String content;
-        try {
-            content = this.simpleEditor.generateSavegame();
-        } catch(Exception e) {
-            this.showErrorMessage("Coulnd't generate valid savegame: " + e.getMessage());
-            return;
-        }
+        byte[] firstKey = Util.hexStringToByteArray(key.getText());
+        boolean unchanged = this.loadedFile != null && !this.simpleEditor.isChanged() && Arrays.equals(firstKey, this.loadedKey);
 
-        this.saveFileAdapter.setXMLContent(content);
+        startOperation(new Storer(outputFile, firstKey, unchanged));
+    }
 
-        this.saveFileAdapter.encryptSecondLayer();
+    /**
+     * Stores the savegame in the background: serialize, encrypt both layers
+     * and write the file. A cancel request is honored until the file is
+     * written, so there is never half a savegame on disk.
+     * 
+     * An unchanged savegame skips everything but writing the loaded file
+     * content, which isn't even necessary if it is stored over the loaded
+     * file and that file wasn't overwritten with other content since.
+     */
+    private class Storer extends PipelineWorker<Boolean> {
+
+        private final File outputFile;
+        private final byte[] firstKey;
+        private final SimpleEditor editor = simpleEditor;
+        private final SaveFileAdapter save = saveFileAdapter;
+        private final File inputFile = loadedFile;
+        private final boolean inputFileIntact = !loadedFileOverwritten;
+        private final boolean unchanged;
+
+        Storer(File outputFile, byte[] firstKey, boolean unchanged) {
+            super(progress, unchanged ? new String[] { "write file" } : new String[] { "generateSavegame", "encryptSecondLayer", "encryptFirstLayer", "write file" });
+            this.outputFile = outputFile;
+            this.firstKey = firstKey;
+            this.unchanged = unchanged;
+        }
 
-        this.saveFileAdapter.setFirstKey(Util.hexStringToByteArray(key.getText()));
+        @Override
+        protected Boolean runPipeline() throws Exception {
+            if(unchanged) {
+                writeLoadedContent();
+                return true;
+            }
 
-        this.saveFileAdapter.encryptFirstLayer();
+            ByteSink content;
+            try {
+                content = editor.generateSavegame();
+            } catch(Exception e) {
+                throw new Failure("Coulnd't generate valid savegame: " + e.getMessage());
+            }
 
-        try {
-            if(!outputFile.exists())
-                outputFile.createNewFile();
+            if(isCancelRequested()) {
+                return null;
+            }
 
-            OutputStream os = new BufferedOutputStream(new FileOutputStream(outputFile));
-            os.write(this.saveFileAdapter.fileContent());
-            os.close();
+            save.setXMLContent(content.buffer(), content.size());
 
-        } catch(IOException e) {
-            this.showErrorMessage("Couldn't write file: " + e.getMessage());
-            return;
-        }
+            save.encryptSecondLayer();
 
-        showInfoMessage("Success");
-    }
+            save.setFirstKey(firstKey);
 
-    /**
-     * Calculate an encryption key from IMEI, MEID, Android_Id or GLUID
-     * 
-     */
-    private static byte[] deriveKeyFromIMEIorGLUID(String imeiOrGLUID) {
+            save.encryptFirstLayer();
 
-        String withoutSpecialCharacters = imeiOrGLUID.replaceAll("[^a-fA-F0-9]", "");
+            if(isCancelRequested()) {
+                return null;
+            }
 
-        // probably GLUID (at least 32 hexadecimal)
-        if(withoutSpecialCharacters.length() >= 32) {
-            withoutSpecialCharacters = withoutSpecialCharacters.substring(0, 32);
-            return Util.hexStringToByteArray(withoutSpecialCharacters);
-        }
-        // probably an IMEI (15 digits)
-        else if(withoutSpecialCharacters.length() == 15 && withoutSpecialCharacters.matches("[0-9]+")) {
-            return createAndroidKey(withoutSpecialCharacters);
-        }
-        // probably a MEID (14 hexadecimal)
-        else if(withoutSpecialCharacters.length() == 14) {
-            return createAndroidKey(withoutSpecialCharacters);
-        }
-        // probably a MEID (alternative 18 digits representation)
-        else if(withoutSpecialCharacters.length() == 18 && withoutSpecialCharacters.matches("[0-9]+")) {
-            return createAndroidKey(withoutSpecialCharacters);
-        }
-        // probably an Android_Id (16 hexadecimal)
-        else if(withoutSpecialCharacters.length() == 16) {
-            return createAndroidKey(withoutSpecialCharacters);
-        }
-        // Not parseable
-        else {
-            return null;
+            Stage stage = Stage.beginFile("write file", outputFile.toPath());
+            try {
+                save.writeFile(outputFile.toPath());
+            } catch(IOException e) {
+                stage.end(0, false);
+                throw new Failure("Couldn't write file: " + e.getMessage());
+            }
+            stage.end(save.getRawDataSize());
+
+            return true;
         }
-    }
 
-    private static byte[] createAndroidKey(String input) {
-        byte[] key2 = Util.md5(Util.stringToASCIIByteArray(input + "com.gameloft.android.ANMP.GloftPOHM"));
+        /**
+         * Write the file content as it was loaded
+         */
+        private void writeLoadedContent() throws Failure {
+            save.restoreLoadedContent();
 
-        int[] ints = Util.bytesToInts(Util.reorderBytes(key2));
-        int[] newInts = new int[ints.length];
-        for(int i = 0; i < ints.length; i++) {
-            if(ints[i % 3] < 0) {
-                newInts[i] = 0x7FFFFFFF - ints[i];
-            } else {
-                newInts[i] = ints[i];
+            Stage stage = Stage.beginFile("write file", outputFile.toPath());
+            try {
+                // the file still has this content
+                if(inputFileIntact && isSameFile(outputFile, inputFile)) {
+                    stage.end(0);
+                    return;
+                }
+
+                save.writeFile(outputFile.toPath());
+            } catch(IOException e) {
+                stage.end(0, false);
+                throw new Failure("Couldn't write file: " + e.getMessage());
             }
+            stage.end(save.getRawDataSize());
         }
 
-        ints = newInts;
+        @Override
+        protected void done() {
+            finishOperation();
+            printSummary("Stored " + outputFile.getAbsolutePath(), getSummary());
 
-        return Util.intsToBytes(ints);
+            try {
+                if(finish(this) == null) {
+                    // cancelled
+                    return;
+                }
+            } catch(Failure e) {
+                showErrorMessage(e.getMessage());
+                return;
+            }
+
+            if(isSameFile(outputFile, inputFile)) {
+                // the loaded content is still in memory, but the file only
+                // has it if it was written unchanged
+                loadedFileOverwritten = !unchanged;
+            }
+
+            if(keyring != null) {
+                // the written file is recognized without probing next time
+                keyring.remember(save, firstKey);
+                saveKeyring();
+            }
+
+            showInfoMessage("Success");
+        }
     }
 
     /**
@@ -395,6 +672,15 @@ public class LunasDreamwalk extends JFrame {
         save = new JButton("Store Savegame");
         save.setEnabled(false);
         buttons.add(save);
+
+        progress = new JProgressBar(0, 100);
+        progress.setStringPainted(true);
+        progress.setString("");
+        buttons.add(progress);
+
+        cancel = new JButton("Cancel");
+        cancel.setEnabled(false);
+        buttons.add(cancel);
         c.gridy++;
         c.gridx = 1;
         this.add(buttons, c);
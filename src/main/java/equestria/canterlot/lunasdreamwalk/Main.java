@@ -2,9 +2,11 @@ package equestria.canterlot.lunasdreamwalk;
 
 import javax.swing.JFrame;
 import javax.swing.UIManager;
+import equestria.canterlot.lunasdreamwalk.cli.CommandLine;
 
 /**
- * Start the main gui in a safe way
+ * Start the main gui in a safe way, or run a command line tool if there are
+ * any arguments
  * 
  */
 public class Main {
@@ -20,6 +22,11 @@ public class Main {
 
     public static void main(String[] args) {
 
+        // no Swing classes are touched before this point
+        if(args.length > 0) {
+            System.exit(CommandLine.run(args));
+        }
+
         try {
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
         } catch(Exception e) {
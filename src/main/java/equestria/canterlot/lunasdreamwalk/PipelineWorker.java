@@ -0,0 +1,130 @@
+package equestria.canterlot.lunasdreamwalk;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.Arrays;
+import java.util.List;
+import javax.swing.JProgressBar;
+import javax.swing.SwingWorker;
+import equestria.canterlot.lunasdreamwalk.instrumentation.Stage;
+import equestria.canterlot.lunasdreamwalk.instrumentation.StageListener;
+import equestria.canterlot.lunasdreamwalk.instrumentation.StageSummary;
+
+/**
+ * Runs a part of the load or store pipeline in the background and shows the
+ * stage it is in on a progress bar. The stages are taken from the
+ * instrumentation, so the bar shows what actually happens instead of a guess.
+ *
+ * Subclasses do their work in runPipeline(), check isCancelRequested()
+ * between the stages, and take over the result in done() on the event
+ * dispatch thread.
+ *
+ */
+abstract class PipelineWorker<T> extends SwingWorker<T, String> implements StageListener {
+
+    /**
+     * A problem that is shown to the user as it is
+     */
+    static class Failure extends Exception {
+
+        private static final long serialVersionUID = 6103735486613045117L;
+
+        Failure(String message) {
+            super(message);
+        }
+    }
+
+    private final JProgressBar progressBar;
+    private final List<String> stages;
+    private final StageSummary summary = new StageSummary();
+    private volatile Thread thread;
+    private volatile boolean cancelRequested;
+
+    /**
+     * @param progressBar
+     *            the bar that shows the progress
+     * @param stages
+     *            the stages of the pipeline in the order they run
+     */
+    PipelineWorker(final JProgressBar progressBar, String... stages) {
+        this.progressBar = progressBar;
+        this.stages = Arrays.asList(stages);
+
+        progressBar.setValue(0);
+        progressBar.setString(stages[0]);
+
+        addPropertyChangeListener(new PropertyChangeListener() {
+
+            public void propertyChange(PropertyChangeEvent e) {
+                if("progress".equals(e.getPropertyName())) {
+                    progressBar.setValue((Integer) e.getNewValue());
+                }
+            }
+        });
+    }
+
+    @Override
+    protected final T doInBackground() throws Exception {
+        thread = Thread.currentThread();
+        Stage.addListener(summary);
+        Stage.addListener(this);
+        try {
+            return runPipeline();
+        } finally {
+            Stage.removeListener(this);
+            Stage.removeListener(summary);
+            thread = null;
+        }
+    }
+
+    /**
+     * Do the actual work, in the background
+     */
+    protected abstract T runPipeline() throws Exception;
+
+    public void stageCompleted(String stage, long nanos, long bytes, boolean success) {
+        // stages of other threads, e.g. the key probes, don't count
+        if(Thread.currentThread() != thread) {
+            return;
+        }
+
+        int index = stages.indexOf(stage);
+        if(index < 0) {
+            return;
+        }
+
+        setProgress(100 * (index + 1) / stages.size());
+        if(index + 1 < stages.size()) {
+            publish(stages.get(index + 1));
+        }
+    }
+
+    @Override
+    protected void process(List<String> chunks) {
+        // chunks can arrive after done() has cleaned up the bar
+        if(!isDone()) {
+            progressBar.setString(chunks.get(chunks.size() - 1));
+        }
+    }
+
+    /**
+     * Ask the worker to stop before its next stage. Unlike cancel(), done()
+     * is only called once the background work has really stopped, so nothing
+     * runs on after the user got control back.
+     */
+    void requestCancel() {
+        cancelRequested = true;
+        progressBar.setString("Cancelling...");
+    }
+
+    boolean isCancelRequested() {
+        return cancelRequested;
+    }
+
+    /**
+     * @return the timings of all stages that ran so far
+     */
+    StageSummary getSummary() {
+        return summary;
+    }
+}
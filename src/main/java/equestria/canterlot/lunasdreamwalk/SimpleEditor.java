@@ -2,38 +2,26 @@ package equestria.canterlot.lunasdreamwalk;
 
 import java.awt.BorderLayout;
 import java.io.IOException;
-import java.io.StringReader;
-import java.io.StringWriter;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import javax.swing.JComponent;
 import javax.swing.JPanel;
+import javax.swing.JScrollPane;
 import javax.swing.JTabbedPane;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import equestria.canterlot.lunasdreamwalk.edit.SaveEdits;
+import equestria.canterlot.lunasdreamwalk.edit.SaveModel;
 import equestria.canterlot.lunasdreamwalk.editor.InputElement;
 import equestria.canterlot.lunasdreamwalk.editor.IntegerInputPanel;
-import equestria.canterlot.lunasdreamwalk.editor.PonySettingsPanel;
+import equestria.canterlot.lunasdreamwalk.editor.PonyTable;
+import equestria.canterlot.lunasdreamwalk.editor.PonyTableModel;
 import equestria.canterlot.lunasdreamwalk.editor.RemoveTypeCheckBox;
 import equestria.canterlot.lunasdreamwalk.editor.SimpleEditorTab;
+import equestria.canterlot.lunasdreamwalk.instrumentation.InputElementEvent;
+import equestria.canterlot.lunasdreamwalk.instrumentation.Stage;
+import equestria.canterlot.lunasdreamwalk.util.ByteSink;
 
 public class SimpleEditor extends JPanel {
 
@@ -41,168 +29,296 @@ public class SimpleEditor extends JPanel {
      * 
      */
     private static final long serialVersionUID = 8589145875345431936L;
-    private Document xmlDocument;
-    private List<InputElement> inputs = new ArrayList<InputElement>();
+
+    private SaveModel model;
+    private List<EditorTab> tabs = new ArrayList<EditorTab>();
 
     /**
-     * The simple editor works with an String that represents an xml tree.
+     * The simple editor works with the single byte characters of an xml
+     * document. It only reads the values it can change, no DOM is built
+     * unless SaveModel.DOM_PROPERTY asks for one.
      * 
      * @param xmlContent
-     * @throws ParserConfigurationException
-     * @throws SAXException
+     *            a buffer with a backing array, whose remaining bytes are the
+     *            xml content, e.g. from SaveFileAdapter.getXMLBuffer(). It
+     *            must not change while the editor is used.
      * @throws IOException
+     *             if the content is not well-formed enough to be read
      */
-    public SimpleEditor(String xmlContent) throws ParserConfigurationException, SAXException, IOException {
+    public SimpleEditor(ByteBuffer xmlContent) throws IOException {
 
-        this.xmlDocument = this.parseSavegame(xmlContent);
+        Stage stage = Stage.begin("parse");
+        boolean success = false;
+        try {
+            this.model = SaveModel.scan(xmlContent);
+            success = true;
+        } finally {
+            stage.end(xmlContent.remaining(), success);
+        }
 
+        stage = Stage.begin("build editor");
         createElements();
+        stage.end(this.tabs.get(0).getInputs().size());
 
     }
 
-    private List<String> getPonyIdList() {
-
-        List<String> ponies = new ArrayList<String>();
-        try {
-            NodeList e = getXMLElementsByString("/MLP_Save/MapZone/GameObjects/Pony_Objects/Object[@ID]");
-
-            for(int i = 0; i < e.getLength(); i++) {
-                ponies.add(e.item(i).getAttributes().getNamedItem("ID").getNodeValue());
-            }
-        } catch(XPathExpressionException e1) {
-            return null;
-        }
-
-        // Sort by name
-        Collections.sort(ponies);
-        return ponies;
+    /**
+     * @return the values that this editor changes
+     */
+    public SaveModel getModel() {
+        return model;
     }
 
     /**
-     * Set up the GUI elements
+     * Set up the GUI elements. Only the first tab is filled right away, the
+     * others when they are selected for the first time.
      */
     private void createElements() {
 
-        JTabbedPane tabPane = new JTabbedPane();
+        final JTabbedPane tabPane = new JTabbedPane();
+
+        addTab(tabPane, new EditorTab("Player") {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected JComponent createContent() {
+                SimpleEditorTab playerTab = new SimpleEditorTab();
+                addInputElement(playerTab, new IntegerInputPanel(model, "Coins", SaveModel.COINS, 0, 2000000000));
+                addInputElement(playerTab, new IntegerInputPanel(model, "Gems", SaveModel.GEMS, 0, 2000000000));
+                addInputElement(playerTab, new IntegerInputPanel(model, "Hearts", SaveModel.HEARTS, 0, 2000000000));
+                addInputElement(playerTab, new IntegerInputPanel(model, "Loyalty Shards", SaveModel.LOYALTY_SHARDS, 0, 999));
+                addInputElement(playerTab, new IntegerInputPanel(model, "Kindness Shards", SaveModel.KINDNESS_SHARDS, 0, 999));
+                addInputElement(playerTab, new IntegerInputPanel(model, "Honesty Shards", SaveModel.HONESTY_SHARDS, 0, 999));
+                addInputElement(playerTab, new IntegerInputPanel(model, "Generosity Shards", SaveModel.GENEROSITY_SHARDS, 0, 999));
+                addInputElement(playerTab, new IntegerInputPanel(model, "Laughter Shards", SaveModel.LAUGHTER_SHARDS, 0, 999));
+                addInputElement(playerTab, new IntegerInputPanel(model, "Magic Shards", SaveModel.MAGIC_SHARDS, 0, 999));
+                return playerTab;
+            }
+        });
+
+        addTab(tabPane, new EditorTab("Map") {
+
+            private static final long serialVersionUID = 1L;
 
-        SimpleEditorTab playerTab = new SimpleEditorTab();
-        SimpleEditorTab mapTab = new SimpleEditorTab();
-        SimpleEditorTab ponyTab = new SimpleEditorTab();
+            @Override
+            protected JComponent createContent() {
+                SimpleEditorTab mapTab = new SimpleEditorTab();
+                addInputElement(mapTab, new RemoveTypeCheckBox(model, "Rubble/Stones/Roots", SaveModel.CLEARABLE_OBJECTS));
+                addInputElement(mapTab, new RemoveTypeCheckBox(model, "Parasprites", SaveModel.PARASPRITE_OBJECTS));
+                return mapTab;
+            }
+        });
 
-        tabPane.addTab("Player", playerTab);
-        tabPane.addTab("Map", mapTab);
-        tabPane.addTab("Ponies", ponyTab);
+        addTab(tabPane, new EditorTab("Ponies") {
 
-        String pdata = "/MLP_Save/PlayerData";
-        String sdata = "/MLP_Save/PlayerData/Shards";
-        String clearable = "/MLP_Save/MapZone[@ID='0']/GameObjects/Clearable_Objects";
-        String parasprites = "/MLP_Save/MapZone[@ID='0']/GameObjects/Parasprite_Objects";
+            private static final long serialVersionUID = 1L;
 
-        try {
-            addInputElement(playerTab, new IntegerInputPanel(this, "Coins", pdata, "Coins", 0, 2000000000));
-            addInputElement(playerTab, new IntegerInputPanel(this, "Gems", pdata, "Hearts", 0, 2000000000));
-            addInputElement(playerTab, new IntegerInputPanel(this, "Hearts", pdata, "Social", 0, 2000000000));
-            addInputElement(playerTab, new IntegerInputPanel(this, "Loyalty Shards", sdata, "Loyalty", 0, 999));
-            addInputElement(playerTab, new IntegerInputPanel(this, "Kindness Shards", sdata, "Kindness", 0, 999));
-            addInputElement(playerTab, new IntegerInputPanel(this, "Honesty Shards", sdata, "Honesty", 0, 999));
-            addInputElement(playerTab, new IntegerInputPanel(this, "Generosity Shards", sdata, "Generosity", 0, 999));
-            addInputElement(playerTab, new IntegerInputPanel(this, "Laughter Shards", sdata, "Laughter", 0, 999));
-            addInputElement(playerTab, new IntegerInputPanel(this, "Magic Shards", sdata, "Magic", 0, 999));
-
-            addInputElement(mapTab, new RemoveTypeCheckBox(this, "Rubble/Stones/Roots", clearable));
-            addInputElement(mapTab, new RemoveTypeCheckBox(this, "Parasprites", parasprites));
-
-            List<String> ponies = getPonyIdList();
-
-            for(String pony : ponies) {
-                addInputElement(ponyTab, new PonySettingsPanel(this, pony));
+            @Override
+            protected JComponent createContent() {
+                PonyTableModel ponies = new PonyTableModel(model);
+                addInput(ponies);
+                return new JScrollPane(new PonyTable(ponies));
             }
+        });
+
+        tabPane.addChangeListener(new ChangeListener() {
+
+            public void stateChanged(ChangeEvent e) {
+                int selected = tabPane.getSelectedIndex();
+                if(selected >= 0) {
+                    tabs.get(selected).build();
+                }
+            }
+        });
+
+        tabs.get(0).build();
 
-        } catch(XPathExpressionException e) {
-            e.printStackTrace();
-        }
         this.setLayout(new BorderLayout());
         this.add(tabPane);
     }
 
-    private void addInputElement(SimpleEditorTab tab, JComponent element) {
-        String name = "";
-        if(element instanceof InputElement) {
-            name = ((InputElement) element).name();
-            this.inputs.add((InputElement) element);
+    private void addTab(JTabbedPane tabPane, EditorTab tab) {
+        tabPane.addTab(tab.getTitle(), tab);
+        this.tabs.add(tab);
+    }
+
+    /**
+     * A tab that creates its input elements when it is shown for the first
+     * time. Until then it is an empty panel and no value of the model is read
+     * for it.
+     */
+    private abstract class EditorTab extends JPanel {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String title;
+        private List<InputElement> inputs;
+
+        EditorTab(String title) {
+            super(new BorderLayout());
+            this.title = title;
         }
 
-        tab.addLine(name + ":", element);
-    }
+        /**
+         * Create the input elements of this tab and the component that shows
+         * them
+         */
+        protected abstract JComponent createContent();
 
-    public Element getXMLElementByString(String location) throws XPathExpressionException {
+        String getTitle() {
+            return title;
+        }
 
-        XPathFactory factory = XPathFactory.newInstance();
-        XPath xpath = factory.newXPath();
+        /**
+         * Fill the tab, if that didn't happen yet
+         */
+        void build() {
+            if(this.inputs != null) {
+                return;
+            }
 
-        XPathExpression expr = xpath.compile(location);
-        Element result = (Element) expr.evaluate(xmlDocument, XPathConstants.NODE);
-        return result;
-    }
+            this.inputs = new ArrayList<InputElement>();
 
-    public NodeList getXMLElementsByString(String location) throws XPathExpressionException {
+            Stage stage = Stage.begin("build tab");
+            this.add(createContent());
+            stage.end(this.inputs.size());
 
-        XPathFactory factory = XPathFactory.newInstance();
-        XPath xpath = factory.newXPath();
+            this.revalidate();
+        }
+
+        boolean isBuilt() {
+            return this.inputs != null;
+        }
+
+        /**
+         * @return the input elements of this tab, which is filled first if
+         *         necessary
+         */
+        List<InputElement> getInputs() {
+            build();
+            return this.inputs;
+        }
+
+        void addInputElement(SimpleEditorTab tab, JComponent element) {
+            String name = "";
+            if(element instanceof InputElement) {
+                InputElement input = (InputElement) element;
+                addInput(input);
+                name = input.name();
+            }
+
+            tab.addLine(name + ":", element);
+        }
 
-        XPathExpression expr = xpath.compile(location);
-        NodeList result = (NodeList) expr.evaluate(xmlDocument, XPathConstants.NODESET);
-        return result;
+        /**
+         * Register an input element that is shown by some other component
+         */
+        void addInput(InputElement input) {
+            reset(input);
+            this.inputs.add(input);
+        }
     }
 
     /**
-     * Convert a String into an xml Document
-     * 
-     * @param xml
-     *            The String that will be converted
-     * @return the Document
-     * @throws ParserConfigurationException
-     * @throws SAXException
-     * @throws IOException
+     * @return true if the savegame would differ from the loaded one
      */
-    private Document parseSavegame(String xml) throws ParserConfigurationException, SAXException, IOException {
-        //System.out.println(xml);
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder builder = factory.newDocumentBuilder();
-
-        return builder.parse(new InputSource(new StringReader(xml.trim())));
+    public boolean isChanged() {
+        return model.isChanged();
     }
 
     /**
-     * Convert the content of the xml Document to a String
+     * Write the changed values into the original xml content, including the
+     * padding that is expected at the end of a savegame. Everything that
+     * wasn't changed keeps its original bytes.
+     * 
+     * Up to 1.6 the whole DOM was serialized again, which dropped the xml
+     * declaration and the document type and normalized the markup. Keeping
+     * the markup the game wrote itself is the safer choice. The result is
+     * scanned once more before it is returned, so a savegame that misses a
+     * change is never written. The DomIndex still writes the 1.6 way, see
+     * SaveModel.DOM_PROPERTY.
      * 
-     * @return the content as String
-     * @throws TransformerException
+     * @return the content, to be used with SaveFileAdapter.setXMLContent
+     * @throws IllegalStateException
+     *             if the result doesn't read back as the changed savegame
      */
-    public String generateSavegame() throws TransformerException {
-        TransformerFactory tf = TransformerFactory.newInstance();
-        Transformer transformer = tf.newTransformer();
-        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-        StringWriter writer = new StringWriter();
+    public ByteSink generateSavegame() {
+        Stage stage = Stage.begin("generateSavegame");
 
-        transformer.transform(new DOMSource(this.xmlDocument), new StreamResult(writer));
+        ByteSink sink = model.write();
 
-        return writer.getBuffer().toString() + "    ";
+        stage.end(sink.size());
+        return sink;
     }
 
     /**
-     * Go through all registered input elements and apply their changes one
-     * after another, stopping if a problem occurs.
+     * Collect the changes of all dirty input elements into one change set and
+     * apply it to the model. If any element is invalid or any change has no
+     * target, nothing is applied at all. Tabs that were never shown can't
+     * have changes, they are skipped like elements that aren't dirty.
+     * 
+     * The changes are written into the savegame by generateSavegame(), in a
+     * single pass over the original content.
      * 
      * @throws Exception
      */
     public void applyAllChanges() throws Exception {
-        for(InputElement i : inputs) {
-            try {
-                i.apply();
-            } catch(Exception e) {
-                throw new Exception("Couldn't apply changes by " + i.name() + ": " + e.getMessage());
+        Stage stage = Stage.begin("applyAllChanges");
+
+        SaveEdits changes = new SaveEdits();
+        for(EditorTab tab : tabs) {
+            if(!tab.isBuilt()) {
+                continue;
             }
+
+            for(InputElement i : tab.getInputs()) {
+                if(!i.isDirty()) {
+                    continue;
+                }
+
+                try {
+                    apply(i, changes);
+                } catch(Exception e) {
+                    stage.end(0, false);
+                    throw new Exception("Couldn't apply changes by " + i.name() + ": " + e.getMessage());
+                }
+            }
+        }
+
+        try {
+            model.apply(changes);
+        } catch(IllegalArgumentException e) {
+            stage.end(0, false);
+            throw new Exception("Couldn't apply changes: " + e.getMessage());
+        }
+
+        stage.end(0);
+    }
+
+    private static void apply(InputElement input, SaveEdits changes) {
+        InputElementEvent event = new InputElementEvent();
+        event.begin();
+
+        input.apply(changes);
+
+        event.end();
+        if(event.shouldCommit()) {
+            event.set(input.name(), "apply");
+            event.commit();
+        }
+    }
+
+    private static void reset(InputElement input) {
+        InputElementEvent event = new InputElementEvent();
+        event.begin();
+
+        input.reset();
+
+        event.end();
+        if(event.shouldCommit()) {
+            event.set(input.name(), "reset");
+            event.commit();
         }
     }
 }
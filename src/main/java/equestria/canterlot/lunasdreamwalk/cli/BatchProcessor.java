@@ -0,0 +1,310 @@
+package equestria.canterlot.lunasdreamwalk.cli;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import equestria.canterlot.lunasdreamwalk.cli.CommandLine.CommandLineException;
+import equestria.canterlot.lunasdreamwalk.edit.SaveEdits;
+import equestria.canterlot.lunasdreamwalk.instrumentation.Stage;
+import equestria.canterlot.lunasdreamwalk.instrumentation.StageListener;
+import equestria.canterlot.lunasdreamwalk.keys.KeyCandidate;
+import equestria.canterlot.lunasdreamwalk.util.CodecPool;
+
+/**
+ * Applies the same changes to every savegame in a directory tree. The files
+ * are processed on a work-stealing pool, and each one is decrypted, changed
+ * and encrypted on its own, so a broken savegame doesn't affect the others.
+ *
+ * The output directory receives the same tree of savegames. The workers
+ * report their stages to the listeners of the thread that calls process().
+ * The pool is shut down by close().
+ *
+ */
+public class BatchProcessor implements AutoCloseable {
+
+    /**
+     * Supplies the keys for each savegame
+     */
+    public interface KeyProvider {
+
+        /**
+         * @param relativePath
+         *            the path of the savegame relative to the input directory
+         * @return the keys of the outer encryption layer that are probed,
+         *         e.g. all forms of a device id
+         * @throws CommandLineException
+         *             if there is no key for the savegame
+         */
+        List<KeyCandidate> getKeys(Path relativePath) throws CommandLineException;
+    }
+
+    /**
+     * The outcome of a batch run
+     */
+    public static class Result {
+
+        private final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+        private final AtomicLong bytes = new AtomicLong();
+        private int files;
+        private long nanos;
+
+        public int getFiles() {
+            return files;
+        }
+
+        public int getFailures() {
+            return failures.size();
+        }
+
+        /**
+         * @return the size of all savegames that were read
+         */
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        public double getSeconds() {
+            return nanos / 1e9;
+        }
+
+        public double getFilesPerSecond() {
+            return files / Math.max(getSeconds(), 1e-9);
+        }
+
+        public double getMegabytesPerSecond() {
+            return getBytes() / (1024.0 * 1024.0) / Math.max(getSeconds(), 1e-9);
+        }
+
+        /**
+         * Print every failure and a summary with the throughput
+         */
+        public void print(PrintStream out) {
+            List<String> sorted;
+            synchronized(failures) {
+                sorted = new ArrayList<String>(failures);
+            }
+
+            Collections.sort(sorted);
+            for(String failure : sorted) {
+                out.println(failure);
+            }
+
+            out.println(String.format("%d savegames, %d failed, %.2f s: %.1f files/s, %.2f MB/s", files, getFailures(), getSeconds(), getFilesPerSecond(), getMegabytesPerSecond()));
+            out.println(CodecPool.shared());
+        }
+    }
+
+    /**
+     * Files per task that are processed without splitting any further
+     */
+    private static final int THRESHOLD = 4;
+
+    private final KeyProvider keys;
+    private final SaveEdits edits;
+    private final ForkJoinPool pool;
+    private volatile boolean streaming;
+
+    /**
+     * @param keys
+     *            supplies the key of each savegame
+     * @param edits
+     *            the changes for all savegames
+     */
+    public BatchProcessor(KeyProvider keys, SaveEdits edits) {
+        this(keys, edits, Runtime.getRuntime().availableProcessors());
+    }
+
+    public BatchProcessor(KeyProvider keys, SaveEdits edits, int parallelism) {
+        this.keys = keys;
+        this.edits = edits;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * @param streaming
+     *            true to apply the changes with a StreamingSaveEditor instead
+     *            of a SaveIndex, see CommandLine.edit()
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Use the same keys for all savegames
+     */
+    public static KeyProvider sharedKeys(final List<KeyCandidate> keys) {
+        return new KeyProvider() {
+
+            public List<KeyCandidate> getKeys(Path relativePath) {
+                return keys;
+            }
+        };
+    }
+
+    /**
+     * Read a key for each savegame from a file. Each line has the form
+     * "&lt;path&gt;=&lt;IMEI/MEID/Android_Id/GLUID&gt;", where the path is
+     * relative to the input directory or just the file name. Every form of
+     * the id is probed, like in the editor.
+     */
+    public static KeyProvider keyFile(Path file) throws IOException {
+        final Properties ids = new Properties();
+        Reader reader = Files.newBufferedReader(file, StandardCharsets.ISO_8859_1);
+        try {
+            ids.load(reader);
+        } finally {
+            reader.close();
+        }
+
+        return new KeyProvider() {
+
+            public List<KeyCandidate> getKeys(Path relativePath) throws CommandLineException {
+                String id = ids.getProperty(relativePath.toString().replace('\\', '/'));
+                if(id == null) {
+                    id = ids.getProperty(relativePath.getFileName().toString());
+                }
+                if(id == null) {
+                    throw new CommandLineException("No IMEI/GLUID for " + relativePath);
+                }
+
+                List<KeyCandidate> candidates = KeyCandidate.expand(id);
+                if(candidates.isEmpty()) {
+                    throw new CommandLineException("Invalid IMEI/MEID/Android_Id/GLUID for " + relativePath + ": " + id);
+                }
+
+                return candidates;
+            }
+        };
+    }
+
+    /**
+     * Process all ".dat" files in a directory tree
+     *
+     * @param input
+     *            the directory with the savegames
+     * @param output
+     *            the directory for the changed savegames, which may be the
+     *            input directory
+     * @return the outcome
+     * @throws IOException
+     *             if the input directory can't be read
+     */
+    public Result process(final Path input, final Path output) throws IOException {
+        final List<Path> files = new ArrayList<Path>();
+        Files.walkFileTree(input, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if(attributes.isRegularFile() && file.getFileName().toString().toLowerCase().endsWith(".dat")) {
+                    files.add(input.relativize(file));
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        Result result = new Result();
+        result.files = files.size();
+
+        long start = System.nanoTime();
+        pool.invoke(new Batch(files, 0, files.size(), input, output, result, Stage.getListeners()));
+        result.nanos = System.nanoTime() - start;
+
+        return result;
+    }
+
+    /**
+     * Shut the pool down, the processor can't be used afterwards
+     */
+    public void close() {
+        pool.shutdown();
+    }
+
+    private void processFile(Path relativePath, Path input, Path output, Result result, List<StageListener> listeners) {
+        Path source = input.resolve(relativePath);
+        Path target = output.resolve(relativePath);
+
+        // the worker reports to the listeners of the thread that called
+        // process(), which may be this very thread
+        List<StageListener> registered = new ArrayList<StageListener>();
+        for(StageListener listener : listeners) {
+            if(!Stage.getListeners().contains(listener)) {
+                Stage.addListener(listener);
+                registered.add(listener);
+            }
+        }
+
+        try {
+            result.bytes.addAndGet(Files.size(source));
+
+            List<KeyCandidate> candidates = keys.getKeys(relativePath);
+            Path parent = target.getParent();
+            if(parent != null) {
+                Files.createDirectories(parent);
+            }
+
+            CommandLine.edit(candidates, source, target, edits, streaming);
+        } catch(CommandLineException e) {
+            result.failures.add(relativePath + ": " + e.getMessage());
+        } catch(IOException e) {
+            result.failures.add(relativePath + ": I/O error: " + e.getMessage());
+        } catch(RuntimeException e) {
+            result.failures.add(relativePath + ": " + e);
+        } finally {
+            for(StageListener listener : registered) {
+                Stage.removeListener(listener);
+            }
+        }
+    }
+
+    /**
+     * Splits the files in halves until they are small enough to be processed,
+     * so idle workers can steal the other halves
+     */
+    private class Batch extends RecursiveAction {
+
+        private static final long serialVersionUID = 4925314398712378713L;
+
+        private final List<Path> files;
+        private final int from, to;
+        private final Path input, output;
+        private final Result result;
+        private final List<StageListener> listeners;
+
+        Batch(List<Path> files, int from, int to, Path input, Path output, Result result, List<StageListener> listeners) {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+            this.input = input;
+            this.output = output;
+            this.result = result;
+            this.listeners = listeners;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from <= THRESHOLD) {
+                for(int i = from; i < to; i++) {
+                    processFile(files.get(i), input, output, result, listeners);
+                }
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new Batch(files, from, middle, input, output, result, listeners), new Batch(files, middle, to, input, output, result, listeners));
+        }
+    }
+}
@@ -0,0 +1,553 @@
+package equestria.canterlot.lunasdreamwalk.cli;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import javax.xml.stream.XMLStreamException;
+import equestria.canterlot.lunasdreamwalk.edit.CleanupRule;
+import equestria.canterlot.lunasdreamwalk.edit.PonyLevel;
+import equestria.canterlot.lunasdreamwalk.edit.SaveEdits;
+import equestria.canterlot.lunasdreamwalk.edit.SaveIndex;
+import equestria.canterlot.lunasdreamwalk.edit.SaveModel;
+import equestria.canterlot.lunasdreamwalk.edit.StreamingSaveEditor;
+import equestria.canterlot.lunasdreamwalk.generator.SaveGenerator;
+import equestria.canterlot.lunasdreamwalk.instrumentation.Stage;
+import equestria.canterlot.lunasdreamwalk.instrumentation.StageSummary;
+import equestria.canterlot.lunasdreamwalk.keys.KeyCandidate;
+import equestria.canterlot.lunasdreamwalk.keys.KeyDerivation;
+import equestria.canterlot.lunasdreamwalk.keys.KeyResolver;
+import equestria.canterlot.lunasdreamwalk.util.ByteSink;
+import equestria.canterlot.lunasdreamwalk.util.SaveFileAdapter;
+import equestria.canterlot.lunasdreamwalk.util.Util;
+
+/**
+ * Headless access to the savegame pipeline, for scripts and machines without
+ * a display. No Swing or DOM classes are loaded; edits are spliced directly
+ * into the decrypted xml.
+ *
+ */
+public class CommandLine {
+
+    private static final String USAGE = "Usage:\n"
+                    + "  info <savegame.dat>\n"
+                    + "  decrypt <key> <savegame.dat> <savegame.xml>\n"
+                    + "  encrypt <key> <savegame.xml> <savegame.dat>\n"
+                    + "  edit <key> <input.dat> <output.dat> [--stream] <changes...>\n"
+                    + "  batch <key> <input directory> <output directory> [--stream] <changes...>\n"
+                    + "  generate <key> <output.dat> [--zones <n>] [--ponies <n>]\n"
+                    + "           [--clearables <n per zone>] [--parasprites <n per zone>] [--seed <n>]\n"
+                    + "\n"
+                    + "<key> is either -id <IMEI/MEID/Android_Id/GLUID> or -key <32 hex digits>\n"
+                    + "decrypt, edit and batch try every form of an id, like the editor does, but\n"
+                    + "not the keys the editor remembered\n"
+                    + "Add --timings anywhere to print the time each stage took.\n"
+                    + "Run java with -Dlunasdreamwalk.dom=true to edit through a DOM like version\n"
+                    + "1.6, which rewrites the whole xml content\n"
+                    + "edit and batch with --stream rewrite the xml content like the DOM does, but\n"
+                    + "in a single pass without building a DOM or an index\n"
+                    + "batch also accepts -keys <file> with one <savegame path>=<IMEI/GLUID/...>\n"
+                    + "per line, the path relative to the input directory or just the file name\n"
+                    + "\n"
+                    + "Changes:\n"
+                    + "  --coins <n>, --gems <n>, --hearts <n>\n"
+                    + "  --loyalty <n>, --kindness <n>, --honesty <n>,\n"
+                    + "  --generosity <n>, --laughter <n>, --magic <n>   (shards)\n"
+                    + "  --pony <id>=<level>[:<shards>[:<xp>]]\n"
+                    + "  --clear-rubble, --clear-parasprites   (all zones)\n"
+                    + "  --clean <type>[@<zone>[,<zone>...]][:<ID pattern>]\n"
+                    + "           removes objects of a type, e.g. Clearable or Parasprite, from the\n"
+                    + "           given zones or all of them, only those whose ID matches the pattern\n";
+
+    private static final int MAX_CURRENCY = 2000000000;
+    private static final int MAX_SHARDS = 999;
+
+    /**
+     * Options that set an attribute: option, element path, attribute, upper
+     * limit. The limits are the same as in the simple editor.
+     */
+    private static final Object[][] ATTRIBUTE_OPTIONS = {
+                    { "--coins", SaveEdits.PLAYER_DATA, "Coins", MAX_CURRENCY },
+                    { "--gems", SaveEdits.PLAYER_DATA, "Hearts", MAX_CURRENCY },
+                    { "--hearts", SaveEdits.PLAYER_DATA, "Social", MAX_CURRENCY },
+                    { "--loyalty", SaveEdits.SHARDS, "Loyalty", MAX_SHARDS },
+                    { "--kindness", SaveEdits.SHARDS, "Kindness", MAX_SHARDS },
+                    { "--honesty", SaveEdits.SHARDS, "Honesty", MAX_SHARDS },
+                    { "--generosity", SaveEdits.SHARDS, "Generosity", MAX_SHARDS },
+                    { "--laughter", SaveEdits.SHARDS, "Laughter", MAX_SHARDS },
+                    { "--magic", SaveEdits.SHARDS, "Magic", MAX_SHARDS } };
+
+    /**
+     * Thrown for anything the user has to fix: wrong arguments, wrong key,
+     * broken files
+     */
+    public static class CommandLineException extends Exception {
+
+        private static final long serialVersionUID = -2297530145370372813L;
+
+        public CommandLineException(String message) {
+            super(message);
+        }
+    }
+
+    private final PrintStream out;
+
+    public CommandLine(PrintStream out) {
+        this.out = out;
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    /**
+     * Run a single command
+     *
+     * @return the exit code
+     */
+    public static int run(String[] args) {
+        List<String> arguments = new ArrayList<String>(Arrays.asList(args));
+        StageSummary summary = null;
+        if(arguments.remove("--timings")) {
+            summary = new StageSummary();
+            Stage.addListener(summary);
+        }
+
+        try {
+            new CommandLine(System.out).execute(arguments.toArray(new String[arguments.size()]));
+            return 0;
+        } catch(CommandLineException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        } catch(IOException e) {
+            System.err.println("I/O error: " + e.getMessage());
+            return 2;
+        } finally {
+            if(summary != null) {
+                Stage.removeListener(summary);
+                summary.print(System.err);
+            }
+        }
+    }
+
+    public void execute(String[] args) throws CommandLineException, IOException {
+        if(args.length == 0) {
+            throw new CommandLineException(USAGE);
+        }
+
+        List<String> arguments = new ArrayList<String>();
+        for(int i = 1; i < args.length; i++) {
+            arguments.add(args[i]);
+        }
+
+        String command = args[0];
+        if(command.equals("info")) {
+            expectArguments(arguments, 1);
+            info(Paths.get(arguments.get(0)));
+        } else if(command.equals("decrypt")) {
+            List<KeyCandidate> keys = parseKeys(arguments);
+            expectArguments(arguments, 2);
+            decrypt(keys, Paths.get(arguments.get(0)), Paths.get(arguments.get(1)));
+        } else if(command.equals("encrypt")) {
+            byte[] key = parseKey(arguments);
+            expectArguments(arguments, 2);
+            encrypt(key, Paths.get(arguments.get(0)), Paths.get(arguments.get(1)));
+        } else if(command.equals("edit")) {
+            List<KeyCandidate> keys = parseKeys(arguments);
+            boolean stream = arguments.remove("--stream");
+            if(arguments.size() < 2) {
+                throw new CommandLineException(USAGE);
+            }
+            SaveEdits edits = parseEdits(arguments.subList(2, arguments.size()));
+            Map<String, Integer> removed = edit(keys, Paths.get(arguments.get(0)), Paths.get(arguments.get(1)), edits, stream);
+            for(Map.Entry<String, Integer> zone : removed.entrySet()) {
+                out.println("Zone " + zone.getKey() + ": removed " + zone.getValue() + " objects");
+            }
+        } else if(command.equals("batch")) {
+            BatchProcessor.KeyProvider keys = parseKeyProvider(arguments);
+            boolean stream = arguments.remove("--stream");
+            if(arguments.size() < 2) {
+                throw new CommandLineException(USAGE);
+            }
+            SaveEdits edits = parseEdits(arguments.subList(2, arguments.size()));
+            BatchProcessor batch = new BatchProcessor(keys, edits);
+            batch.setStreaming(stream);
+            BatchProcessor.Result result;
+            try {
+                result = batch.process(Paths.get(arguments.get(0)), Paths.get(arguments.get(1)));
+            } finally {
+                batch.close();
+            }
+            result.print(out);
+            if(result.getFailures() > 0) {
+                throw new CommandLineException(result.getFailures() + " of " + result.getFiles() + " savegames failed");
+            }
+        } else if(command.equals("generate")) {
+            byte[] key = parseKey(arguments);
+            if(arguments.isEmpty()) {
+                throw new CommandLineException(USAGE);
+            }
+            SaveGenerator generator = parseGenerator(arguments.subList(1, arguments.size()));
+            generator.write(Paths.get(arguments.get(0)), key);
+        } else if(command.equals("help") || command.equals("-h") || command.equals("--help")) {
+            out.print(USAGE);
+        } else {
+            throw new CommandLineException("Unknown command " + command + "\n\n" + USAGE);
+        }
+    }
+
+    private static void expectArguments(List<String> arguments, int count) throws CommandLineException {
+        if(arguments.size() != count) {
+            throw new CommandLineException(USAGE);
+        }
+    }
+
+    /**
+     * Remove the key option from the arguments and derive the key
+     */
+    static byte[] parseKey(List<String> arguments) throws CommandLineException {
+        if(arguments.size() < 2) {
+            throw new CommandLineException(USAGE);
+        }
+
+        String option = arguments.remove(0);
+        String value = arguments.remove(0);
+
+        if(option.equals("-id")) {
+            byte[] key = KeyDerivation.deriveKeyFromIMEIorGLUID(value);
+            if(key == null) {
+                throw new CommandLineException("Invalid IMEI/MEID/Android_Id/GLUID: " + value);
+            }
+            return key;
+        } else if(option.equals("-key")) {
+            if(!value.matches("[a-fA-F0-9]{32}")) {
+                throw new CommandLineException("A key must have 32 hexadecimal digits: " + value);
+            }
+            return Util.hexStringToByteArray(value);
+        }
+
+        throw new CommandLineException("Expected -id or -key instead of " + option + "\n\n" + USAGE);
+    }
+
+    /**
+     * Like parseKey(), but an id gives every key it could stand for
+     */
+    static List<KeyCandidate> parseKeys(List<String> arguments) throws CommandLineException {
+        if(arguments.size() < 2 || !arguments.get(0).equals("-id")) {
+            return Collections.singletonList(KeyCandidate.forKey(parseKey(arguments)));
+        }
+
+        arguments.remove(0);
+        String value = arguments.remove(0);
+        List<KeyCandidate> candidates = KeyCandidate.expand(value);
+        if(candidates.isEmpty()) {
+            throw new CommandLineException("Invalid IMEI/MEID/Android_Id/GLUID: " + value);
+        }
+        return candidates;
+    }
+
+    /**
+     * Like parseKey(), but also accepts a file with a key per savegame
+     */
+    private static BatchProcessor.KeyProvider parseKeyProvider(List<String> arguments) throws CommandLineException, IOException {
+        if(arguments.size() < 2 || !arguments.get(0).equals("-keys")) {
+            return BatchProcessor.sharedKeys(parseKeys(arguments));
+        }
+
+        arguments.remove(0);
+        Path file = Paths.get(arguments.remove(0));
+        try {
+            return BatchProcessor.keyFile(file);
+        } catch(NoSuchFileException e) {
+            throw new CommandLineException("File " + file + " not found");
+        }
+    }
+
+    static SaveEdits parseEdits(List<String> arguments) throws CommandLineException {
+        SaveEdits edits = new SaveEdits();
+
+        for(int i = 0; i < arguments.size(); i++) {
+            String option = arguments.get(i);
+
+            if(option.equals("--clear-rubble")) {
+                edits.addCleanup(new CleanupRule(CleanupRule.CLEARABLE));
+                continue;
+            }
+            if(option.equals("--clear-parasprites")) {
+                edits.addCleanup(new CleanupRule(CleanupRule.PARASPRITE));
+                continue;
+            }
+
+            if(i + 1 >= arguments.size()) {
+                throw new CommandLineException("Missing value for " + option);
+            }
+            String value = arguments.get(++i);
+
+            if(option.equals("--pony")) {
+                parsePony(edits, value);
+                continue;
+            }
+            if(option.equals("--clean")) {
+                try {
+                    edits.addCleanup(CleanupRule.parse(value));
+                } catch(IllegalArgumentException e) {
+                    throw new CommandLineException(e.getMessage());
+                }
+                continue;
+            }
+
+            Object[] attribute = attributeOption(option);
+            if(attribute == null) {
+                throw new CommandLineException("Unknown change " + option + "\n\n" + USAGE);
+            }
+
+            edits.setAttribute((String) attribute[1], (String) attribute[2], parseInteger(option, value, 0, (Integer) attribute[3]));
+        }
+
+        if(edits.isEmpty()) {
+            throw new CommandLineException("No changes given\n\n" + USAGE);
+        }
+
+        return edits;
+    }
+
+    private static SaveGenerator parseGenerator(List<String> arguments) throws CommandLineException {
+        SaveGenerator generator = new SaveGenerator();
+
+        for(int i = 0; i < arguments.size(); i += 2) {
+            String option = arguments.get(i);
+            if(i + 1 >= arguments.size()) {
+                throw new CommandLineException("Missing value for " + option);
+            }
+            String value = arguments.get(i + 1);
+
+            if(option.equals("--zones")) {
+                generator.setMapZones(parseInteger(option, value, 1, Integer.MAX_VALUE));
+            } else if(option.equals("--ponies")) {
+                generator.setPonies(parseInteger(option, value, 0, Integer.MAX_VALUE));
+            } else if(option.equals("--clearables")) {
+                generator.setClearables(parseInteger(option, value, 0, Integer.MAX_VALUE));
+            } else if(option.equals("--parasprites")) {
+                generator.setParasprites(parseInteger(option, value, 0, Integer.MAX_VALUE));
+            } else if(option.equals("--seed")) {
+                generator.setSeed(parseInteger(option, value, Integer.MIN_VALUE, Integer.MAX_VALUE));
+            } else {
+                throw new CommandLineException("Unknown option " + option + "\n\n" + USAGE);
+            }
+        }
+
+        return generator;
+    }
+
+    private static Object[] attributeOption(String option) {
+        for(Object[] o : ATTRIBUTE_OPTIONS) {
+            if(o[0].equals(option)) {
+                return o;
+            }
+        }
+
+        return null;
+    }
+
+    private static void parsePony(SaveEdits edits, String value) throws CommandLineException {
+        int separator = value.lastIndexOf('=');
+        if(separator <= 0) {
+            throw new CommandLineException("Expected <id>=<level>[:<shards>[:<xp>]] instead of " + value);
+        }
+
+        String[] parts = value.substring(separator + 1).split(":");
+        if(parts.length > 3) {
+            throw new CommandLineException("Expected <id>=<level>[:<shards>[:<xp>]] instead of " + value);
+        }
+
+        int level = parseInteger("--pony", parts[0], 0, PonyLevel.MAX_LEVEL);
+        int shards = parts.length > 1 ? parseInteger("--pony", parts[1], 0, PonyLevel.MAX_SHARDS) : 0;
+        int xp = parts.length > 2 ? parseInteger("--pony", parts[2], 0, Integer.MAX_VALUE) : 0;
+
+        edits.setPonyLevel(value.substring(0, separator), PonyLevel.sanitized(level, shards, xp));
+    }
+
+    private static int parseInteger(String option, String value, int min, int max) throws CommandLineException {
+        int result;
+        try {
+            result = Integer.parseInt(value);
+        } catch(NumberFormatException e) {
+            throw new CommandLineException("Not a number for " + option + ": " + value);
+        }
+
+        if(result < min || result > max) {
+            throw new CommandLineException("Value for " + option + " must be between " + min + " and " + max + ": " + value);
+        }
+
+        return result;
+    }
+
+    private static SaveFileAdapter open(Path file) throws CommandLineException, IOException {
+        SaveFileAdapter save;
+        try {
+            save = new SaveFileAdapter(file);
+        } catch(NoSuchFileException e) {
+            throw new CommandLineException("File " + file + " not found");
+        }
+
+        if(!save.sanityCheck()) {
+            throw new CommandLineException("The savegame file seems to be invalid: " + file);
+        }
+
+        return save;
+    }
+
+    /**
+     * Find the key among the candidates, a single candidate is used as it is
+     */
+    private static byte[] resolveKey(SaveFileAdapter save, List<KeyCandidate> candidates) throws CommandLineException {
+        if(candidates.size() == 1) {
+            return candidates.get(0).getKey();
+        }
+
+        KeyCandidate key;
+        try {
+            key = new KeyResolver().resolve(save, candidates);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CommandLineException("Interrupted while looking for the key");
+        }
+
+        if(key == null) {
+            throw new CommandLineException("Couldn't decrypt first security layer of file. Is your IMEI/GLUID correct?");
+        }
+        return key.getKey();
+    }
+
+    private static void decryptLayers(SaveFileAdapter save, byte[] key) throws CommandLineException {
+        save.setFirstKey(key);
+
+        if(!save.decryptFirstLayer()) {
+            throw new CommandLineException("Couldn't decrypt first security layer of file. Is your IMEI/GLUID correct?");
+        }
+
+        if(!save.decryptSecondLayer()) {
+            throw new CommandLineException("Couldn't decrypt second security layer of file. Maybe the savegame has a different protection scheme?");
+        }
+    }
+
+    private static void encryptAndWrite(SaveFileAdapter save, byte[] key, ByteSink xml, Path file) throws CommandLineException, IOException {
+        save.setXMLContent(xml.buffer(), xml.size());
+        save.encryptSecondLayer();
+        save.setFirstKey(key);
+
+        if(!save.encryptFirstLayer()) {
+            throw new CommandLineException("Couldn't compress the savegame");
+        }
+
+        Stage stage = Stage.beginFile("write file", file);
+        boolean success = false;
+        try {
+            save.writeFile(file);
+            success = true;
+        } finally {
+            stage.end(save.getRawDataSize(), success);
+        }
+    }
+
+    private void info(Path file) throws CommandLineException, IOException {
+        SaveFileAdapter save = open(file);
+
+        out.println("File size:         " + save.getRawDataSize());
+        out.println("Version:           " + save.getVersionNumber());
+        out.println("Decompressed size: " + save.payloadDecompressedSize());
+        out.println("Compressed size:   " + save.payloadCompressedSize());
+        out.println("Encrypted size:    " + save.payloadEncryptedSize());
+    }
+
+    private void decrypt(List<KeyCandidate> keys, Path input, Path output) throws CommandLineException, IOException {
+        SaveFileAdapter save = open(input);
+        decryptLayers(save, resolveKey(save, keys));
+        ByteBuffer xml = save.getXMLBuffer();
+
+        Files.write(output, Arrays.copyOfRange(xml.array(), xml.position(), xml.limit()));
+    }
+
+    private void encrypt(byte[] key, Path input, Path output) throws CommandLineException, IOException {
+        byte[] content;
+        try {
+            content = Files.readAllBytes(input);
+        } catch(NoSuchFileException e) {
+            throw new CommandLineException("File " + input + " not found");
+        }
+
+        int length = content.length;
+        while(length > 0 && (content[length - 1] & 0xFF) <= ' ') {
+            length--;
+        }
+
+        ByteSink xml = new ByteSink(length + 4);
+        xml.write(content, 0, length);
+        SaveFileAdapter.appendPadding(xml);
+
+        // the file content is built from scratch when encrypting
+        SaveFileAdapter save = new SaveFileAdapter(new byte[0]);
+        encryptAndWrite(save, key, xml, output);
+    }
+
+    /**
+     * Decrypt a savegame, apply the changes and write it encrypted with the
+     * same key, the first candidate that fits
+     *
+     * @param stream
+     *            true to apply the changes with a StreamingSaveEditor instead
+     *            of a SaveIndex
+     * @return the number of objects the cleanup rules removed, by zone ID
+     */
+    static Map<String, Integer> edit(List<KeyCandidate> keys, Path input, Path output, SaveEdits edits, boolean stream) throws CommandLineException, IOException {
+        SaveFileAdapter save = open(input);
+        byte[] key = resolveKey(save, keys);
+        decryptLayers(save, key);
+
+        ByteSink xml;
+        Map<String, Integer> removed;
+        Stage stage = Stage.begin(stream ? "stream xml" : "patch xml");
+        try {
+            if(stream) {
+                // the output is about as large as the input, plus the padding
+                ByteBuffer buffer = save.getXMLBuffer();
+                xml = new ByteSink(buffer.remaining() + 4);
+                InputStream in = save.getXMLStream();
+                try {
+                    removed = new StreamingSaveEditor(edits).edit(in, xml);
+                } finally {
+                    in.close();
+                }
+            } else {
+                SaveIndex index = SaveModel.index(save.getXMLBuffer());
+                removed = index.countCleanup(edits.getCleanups());
+                xml = index.patch(edits);
+            }
+        } catch(XMLStreamException e) {
+            stage.end(0, false);
+            throw new CommandLineException("XML Invalid: " + e.getMessage());
+        } catch(IOException e) {
+            stage.end(0, false);
+            throw new CommandLineException("XML Invalid: " + e.getMessage());
+        } catch(IllegalArgumentException e) {
+            stage.end(0, false);
+            throw new CommandLineException("Couldn't apply changes: " + e.getMessage());
+        } catch(IllegalStateException e) {
+            stage.end(0, false);
+            throw new CommandLineException("Couldn't apply changes: " + e.getMessage());
+        }
+        stage.end(xml.size());
+
+        encryptAndWrite(save, key, xml, output);
+        return removed;
+    }
+}
@@ -0,0 +1,162 @@
+package equestria.canterlot.lunasdreamwalk.edit;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Removes objects of one type from the map of a savegame, e.g. the rubble of
+ * every zone or only the parasprites of some zones. The objects of a type
+ * are the children of /MLP_Save/MapZone/GameObjects/&lt;type&gt;_Objects.
+ *
+ * A rule can be limited to a set of zones and to objects whose ID matches a
+ * pattern. Without a pattern, the whole content of the matching containers
+ * is removed at once.
+ *
+ */
+public class CleanupRule {
+
+    public static final String CLEARABLE = "Clearable";
+    public static final String PARASPRITE = "Parasprite";
+
+    private static final String CONTAINER_SUFFIX = "_Objects";
+
+    private final String type;
+    private final Set<String> zones;
+    private final Pattern idPattern;
+
+    /**
+     * Remove all objects of a type from every zone
+     *
+     * @param type
+     *            the object type, e.g. CLEARABLE
+     */
+    public CleanupRule(String type) {
+        this(type, null, null);
+    }
+
+    /**
+     * @param type
+     *            the object type, e.g. CLEARABLE
+     * @param zones
+     *            the IDs of the zones to clean up, or null for every zone
+     * @param idPattern
+     *            the pattern the whole ID of an object must match, or null
+     *            for all objects
+     */
+    public CleanupRule(String type, Set<String> zones, Pattern idPattern) {
+        if(type.endsWith(CONTAINER_SUFFIX)) {
+            type = type.substring(0, type.length() - CONTAINER_SUFFIX.length());
+        }
+        if(type.length() == 0) {
+            throw new IllegalArgumentException("No object type given");
+        }
+
+        this.type = type;
+        this.zones = zones == null ? null : Collections.unmodifiableSet(new LinkedHashSet<String>(zones));
+        this.idPattern = idPattern;
+    }
+
+    /**
+     * Parse a rule like "Clearable", "Parasprite@0,2" or "Clearable@1:Tree_.*"
+     *
+     * @param rule
+     *            &lt;type&gt;[@&lt;zone&gt;[,&lt;zone&gt;...]][:&lt;ID
+     *            pattern&gt;]
+     * @return the rule
+     * @throws IllegalArgumentException
+     *             if the rule can't be parsed
+     */
+    public static CleanupRule parse(String rule) {
+        Pattern idPattern = null;
+        int colon = rule.indexOf(':');
+        if(colon >= 0) {
+            try {
+                idPattern = Pattern.compile(rule.substring(colon + 1));
+            } catch(PatternSyntaxException e) {
+                throw new IllegalArgumentException("Invalid ID pattern in " + rule + ": " + e.getDescription());
+            }
+            rule = rule.substring(0, colon);
+        }
+
+        Set<String> zones = null;
+        int at = rule.indexOf('@');
+        if(at >= 0) {
+            zones = new LinkedHashSet<String>(Arrays.asList(rule.substring(at + 1).split(",", -1)));
+            if(zones.contains("")) {
+                throw new IllegalArgumentException("Empty zone in " + rule);
+            }
+            rule = rule.substring(0, at);
+        }
+
+        return new CleanupRule(rule, zones, idPattern);
+    }
+
+    /**
+     * @return the object type, without the "_Objects" of its container
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * @return the name of the container element of the objects
+     */
+    public String getContainer() {
+        return type + CONTAINER_SUFFIX;
+    }
+
+    /**
+     * @return the IDs of the zones to clean up, or null for every zone
+     */
+    public Set<String> getZones() {
+        return zones;
+    }
+
+    public Pattern getIdPattern() {
+        return idPattern;
+    }
+
+    /**
+     * @return true if the rule removes the whole content of the containers
+     *         it applies to
+     */
+    public boolean removesAll() {
+        return idPattern == null;
+    }
+
+    /**
+     * @return true if the rule applies to a container of a zone
+     */
+    public boolean appliesTo(String zoneId, String container) {
+        return getContainer().equals(container) && (zones == null || zones.contains(zoneId));
+    }
+
+    /**
+     * @return true if the rule removes an object of a container it applies to
+     */
+    public boolean removes(String objectId) {
+        return idPattern == null || (objectId != null && idPattern.matcher(objectId).matches());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder(type);
+        if(zones != null) {
+            s.append('@');
+            String separator = "";
+            for(String zone : zones) {
+                s.append(separator).append(zone);
+                separator = ",";
+            }
+        }
+        if(idPattern != null) {
+            s.append(':').append(idPattern.pattern());
+        }
+
+        return s.toString();
+    }
+}
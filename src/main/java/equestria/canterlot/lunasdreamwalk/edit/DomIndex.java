@@ -0,0 +1,446 @@
+package equestria.canterlot.lunasdreamwalk.edit;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import equestria.canterlot.lunasdreamwalk.instrumentation.XPathLookupEvent;
+import equestria.canterlot.lunasdreamwalk.util.ByteSink;
+import equestria.canterlot.lunasdreamwalk.util.SaveFileAdapter;
+import equestria.canterlot.lunasdreamwalk.util.XPathCache;
+import equestria.canterlot.lunasdreamwalk.xml.MarkupDomWriter;
+import equestria.canterlot.lunasdreamwalk.xml.MarkupWriter;
+
+/**
+ * Keeps a savegame as a DOM, like the editor did up to version 1.6. Any
+ * well-formed document can be parsed, so this is the alternative for content
+ * that OffsetIndex can't scan. It needs about ten times the memory, and
+ * writing serializes the whole document again, which drops the xml
+ * declaration and the document type.
+ *
+ * The editable paths are looked up with cached XPath expressions, the Level
+ * element of every pony is indexed once after parsing. Changes are only
+ * applied to the DOM while it is written and undone right after.
+ *
+ */
+public class DomIndex implements SaveIndex {
+
+    private static final String ENCODING = "ISO-8859-1";
+
+    private static final String ZONES = "/MLP_Save/MapZone";
+    private static final String CONTAINERS = "/MLP_Save/MapZone/GameObjects/*[name()=$container]";
+
+    /**
+     * Compiled expressions don't depend on the document, so they are shared
+     * by all indexes that are used on the same thread
+     */
+    private static final ThreadLocal<XPathCache> XPATH_CACHE = new ThreadLocal<XPathCache>() {
+
+        @Override
+        protected XPathCache initialValue() {
+            return new XPathCache(64);
+        }
+    };
+
+    private final Document document;
+    private final int size;
+    private final Map<String, Element> ponies = new LinkedHashMap<String, Element>();
+
+    private DomIndex(Document document, int size) {
+        this.document = document;
+        this.size = size;
+
+        indexPonies();
+    }
+
+    /**
+     * Parse the xml content of a savegame
+     *
+     * @param xml
+     *            a buffer with a backing array, whose remaining bytes are the
+     *            xml content, e.g. from SaveFileAdapter.getXMLBuffer()
+     * @return the index
+     * @throws IOException
+     *             if the content is not well-formed
+     */
+    public static DomIndex parse(ByteBuffer xml) throws IOException {
+        InputSource source = new InputSource(new ByteArrayInputStream(xml.array(), xml.arrayOffset() + xml.position(), xml.remaining()));
+        source.setEncoding(ENCODING);
+
+        try {
+            return new DomIndex(DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(source), xml.remaining());
+        } catch(SAXException e) {
+            throw new IOException(e.getMessage(), e);
+        } catch(ParserConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Walk /MLP_Save/MapZone/GameObjects/Pony_Objects/Object[@ID]/Game/Level
+     * once and remember the Level element of every pony. If a pony id exists
+     * more than once, the first one in document order wins, like it would for
+     * an XPath lookup.
+     */
+    private void indexPonies() {
+        Element root = document.getDocumentElement();
+
+        if(root == null || !root.getNodeName().equals("MLP_Save")) {
+            return;
+        }
+
+        for(Element zone : childElements(root, "MapZone")) {
+            for(Element objects : childElements(zone, "GameObjects")) {
+                for(Element ponyObjects : childElements(objects, "Pony_Objects")) {
+                    for(Element pony : childElements(ponyObjects, "Object")) {
+                        String id = pony.getAttribute("ID");
+
+                        if(!pony.hasAttribute("ID") || ponies.containsKey(id)) {
+                            continue;
+                        }
+
+                        Element level = findLevel(pony);
+                        if(level != null) {
+                            ponies.put(id, level);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static Element findLevel(Element pony) {
+        for(Element game : childElements(pony, "Game")) {
+            for(Element level : childElements(game, "Level")) {
+                return level;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param tagName
+     *            the name of the children, or null for all of them
+     */
+    private static List<Element> childElements(Element parent, String tagName) {
+        List<Element> result = new ArrayList<Element>();
+
+        for(Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if(n.getNodeType() == Node.ELEMENT_NODE && (tagName == null || n.getNodeName().equals(tagName))) {
+                result.add((Element) n);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Evaluate a cached expression and record the lookup as a flight recorder
+     * event
+     *
+     * @param variable
+     *            the name of the variable in the expression without the '$',
+     *            or null if it has none
+     */
+    private Object lookup(String location, QName returnType, String variable, String value) {
+        XPathLookupEvent event = new XPathLookupEvent();
+        event.begin();
+
+        XPathCache cache = XPATH_CACHE.get();
+        long misses = cache.getMisses();
+
+        Object result;
+        try {
+            if(variable == null) {
+                result = cache.evaluate(location, document, returnType);
+            } else {
+                result = cache.evaluate(location, document, returnType, variable, value);
+            }
+        } catch(XPathExpressionException e) {
+            throw new IllegalArgumentException("Invalid path " + location + ": " + e.getMessage());
+        }
+
+        event.end();
+        if(event.shouldCommit()) {
+            event.set(location, cache.getMisses() != misses, result != null);
+            event.commit();
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the first element of an editable path or null
+     */
+    private Element find(String path) {
+        if(!Arrays.asList(OffsetIndex.EDITABLE_PATHS).contains(path)) {
+            return null;
+        }
+
+        return (Element) lookup(path, XPathConstants.NODE, null, null);
+    }
+
+    private Element element(String path) {
+        if(!Arrays.asList(OffsetIndex.EDITABLE_PATHS).contains(path)) {
+            throw new IllegalArgumentException("Path is not indexed: " + path);
+        }
+
+        Element element = find(path);
+        if(element == null) {
+            throw new IllegalArgumentException("No element at " + path);
+        }
+
+        return element;
+    }
+
+    private static String attribute(Element element, String attribute) {
+        return element != null && element.hasAttribute(attribute) ? element.getAttribute(attribute) : null;
+    }
+
+    public boolean hasElement(String path) {
+        return find(path) != null;
+    }
+
+    public String getAttribute(String path, String attribute) {
+        return attribute(find(path), attribute);
+    }
+
+    public Set<String> getPonyIds() {
+        return Collections.unmodifiableSet(ponies.keySet());
+    }
+
+    public String getPonyAttribute(String ponyId, String attribute) {
+        return attribute(ponies.get(ponyId), attribute);
+    }
+
+    public Map<String, Integer> getObjectCounts(String container) {
+        NodeList found = (NodeList) lookup(CONTAINERS, XPathConstants.NODESET, "container", container);
+
+        Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+        Set<Node> zones = new HashSet<Node>();
+        for(int i = 0; i < found.getLength(); i++) {
+            Node zone = found.item(i).getParentNode().getParentNode();
+            if(!zones.add(zone)) {
+                // only the first container of a zone counts
+                continue;
+            }
+
+            String id = attribute((Element) zone, "ID");
+            Integer before = counts.get(id);
+            counts.put(id, childElements((Element) found.item(i), null).size() + (before == null ? 0 : before));
+        }
+
+        return counts;
+    }
+
+    public Map<String, Integer> countCleanup(List<CleanupRule> rules) {
+        return cleanup(rules, null);
+    }
+
+    /**
+     * Apply cleanup rules to every zone
+     *
+     * @param changes
+     *            records the removed nodes, or null to only count
+     * @return the number of removed objects by zone ID
+     */
+    private Map<String, Integer> cleanup(List<CleanupRule> rules, Changes changes) {
+        Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+        if(rules.isEmpty()) {
+            return counts;
+        }
+
+        NodeList zones = (NodeList) lookup(ZONES, XPathConstants.NODESET, null, null);
+        List<CleanupRule> patterns = new ArrayList<CleanupRule>();
+        for(int z = 0; z < zones.getLength(); z++) {
+            Element zone = (Element) zones.item(z);
+            String id = attribute(zone, "ID");
+            int removed = 0;
+            boolean applies = false;
+
+            for(Map.Entry<String, Element> c : containers(zone).entrySet()) {
+                boolean all = false;
+                patterns.clear();
+                for(CleanupRule rule : rules) {
+                    if(rule.appliesTo(id, c.getKey())) {
+                        all |= rule.removesAll();
+                        patterns.add(rule);
+                    }
+                }
+
+                if(patterns.isEmpty()) {
+                    continue;
+                }
+                applies = true;
+
+                List<Element> objects = childElements(c.getValue(), null);
+                List<Element> matching = new ArrayList<Element>();
+                for(Element object : objects) {
+                    if(all || removesAny(patterns, attribute(object, "ID"))) {
+                        matching.add(object);
+                    }
+                }
+                removed += matching.size();
+
+                if(changes == null) {
+                    continue;
+                }
+
+                if(all || (!matching.isEmpty() && matching.size() == objects.size())) {
+                    // drop the whole content, like OffsetIndex does
+                    Node child;
+                    while((child = c.getValue().getFirstChild()) != null) {
+                        changes.remove(child);
+                    }
+                    continue;
+                }
+
+                for(Element object : matching) {
+                    // take the indentation along
+                    Node previous = object.getPreviousSibling();
+                    if(previous != null && previous.getNodeType() == Node.TEXT_NODE && previous.getNodeValue().trim().isEmpty()) {
+                        changes.remove(previous);
+                    }
+                    changes.remove(object);
+                }
+            }
+
+            if(applies) {
+                Integer before = counts.get(id);
+                counts.put(id, before == null ? removed : before + removed);
+            }
+        }
+
+        return counts;
+    }
+
+    /**
+     * @return the first container of each name of a zone, in document order
+     */
+    private static Map<String, Element> containers(Element zone) {
+        Map<String, Element> containers = new LinkedHashMap<String, Element>();
+        for(Element objects : childElements(zone, "GameObjects")) {
+            for(Element container : childElements(objects, null)) {
+                if(!containers.containsKey(container.getNodeName())) {
+                    containers.put(container.getNodeName(), container);
+                }
+            }
+        }
+
+        return containers;
+    }
+
+    private static boolean removesAny(List<CleanupRule> rules, String id) {
+        for(CleanupRule rule : rules) {
+            if(rule.removes(id)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public ByteSink patch(SaveEdits edits) {
+        // check all paths first instead of failing halfway through
+        for(String path : edits.getAttributes().keySet()) {
+            element(path);
+        }
+        for(String id : edits.getPonyLevels().keySet()) {
+            if(!ponies.containsKey(id)) {
+                throw new IllegalArgumentException("No pony " + id);
+            }
+        }
+        for(CleanupRule rule : edits.getCleanups()) {
+            if(countCleanup(Collections.singletonList(rule)).isEmpty()) {
+                throw new IllegalArgumentException("No zone has " + rule.getContainer() + " for " + rule);
+            }
+        }
+
+        Changes changes = new Changes();
+        try {
+            for(Map.Entry<String, Map<String, String>> e : edits.getAttributes().entrySet()) {
+                Element element = element(e.getKey());
+                for(Map.Entry<String, String> a : e.getValue().entrySet()) {
+                    changes.setAttribute(element, a.getKey(), a.getValue());
+                }
+            }
+
+            for(Map.Entry<String, PonyLevel> e : edits.getPonyLevels().entrySet()) {
+                Element level = ponies.get(e.getKey());
+                changes.setAttribute(level, "Level", Integer.toString(e.getValue().getLevel()));
+                changes.setAttribute(level, "Shards", Integer.toString(e.getValue().getShards()));
+                changes.setAttribute(level, "CurrentEXP", Integer.toString(e.getValue().getXP()));
+            }
+
+            cleanup(edits.getCleanups(), changes);
+
+            // leave room for the padding
+            ByteSink sink = new ByteSink(size + 4);
+            new MarkupDomWriter(new MarkupWriter(sink)).write(document);
+            SaveFileAdapter.appendPadding(sink);
+
+            return sink;
+        } finally {
+            changes.undo();
+        }
+    }
+
+    /**
+     * Changes to the DOM that can be undone, in reverse order
+     */
+    private static class Changes {
+
+        private final List<Object[]> attributes = new ArrayList<Object[]>();
+        private final List<Node[]> removals = new ArrayList<Node[]>();
+
+        void setAttribute(Element element, String name, String value) {
+            attributes.add(new Object[] { element, name, attribute(element, name) });
+            element.setAttribute(name, value);
+        }
+
+        void remove(Node node) {
+            Node parent = node.getParentNode();
+            removals.add(new Node[] { parent, node, node.getNextSibling() });
+            parent.removeChild(node);
+        }
+
+        void undo() {
+            for(int i = removals.size() - 1; i >= 0; i--) {
+                Node[] removal = removals.get(i);
+                removal[0].insertBefore(removal[1], removal[2]);
+            }
+            removals.clear();
+
+            for(int i = attributes.size() - 1; i >= 0; i--) {
+                Element element = (Element) attributes.get(i)[0];
+                String name = (String) attributes.get(i)[1];
+                String value = (String) attributes.get(i)[2];
+                if(value == null) {
+                    element.removeAttribute(name);
+                } else {
+                    element.setAttribute(name, value);
+                }
+            }
+            attributes.clear();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package equestria.canterlot.lunasdreamwalk.edit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A simple absolute path to an element like
+ * "/MLP_Save/MapZone[@ID='0']/GameObjects", which can be matched without a
+ * DOM. Each step is an element name with an optional attribute predicate, so
+ * every path is also a valid XPath expression that selects the same
+ * elements.
+ * 
+ */
+public class ElementPath {
+
+    private static final Pattern STEP = Pattern.compile("/([A-Za-z_][\\w.-]*)(?:\\[@([A-Za-z_][\\w.-]*)='([^']*)'\\])?");
+
+    private final String path;
+    private final String[] names;
+    private final String[] attributes;
+    private final String[] values;
+
+    /**
+     * @param path
+     *            the path
+     * @throws IllegalArgumentException
+     *             if the path is not an absolute path of simple steps
+     */
+    public ElementPath(String path) {
+        this.path = path;
+
+        List<String[]> steps = new ArrayList<String[]>();
+        Matcher m = STEP.matcher(path);
+        int end = 0;
+        while(m.find() && m.start() == end) {
+            steps.add(new String[] { m.group(1), m.group(2), m.group(3) });
+            end = m.end();
+        }
+
+        if(end != path.length() || steps.isEmpty()) {
+            throw new IllegalArgumentException("Unsupported element path: " + path);
+        }
+
+        names = new String[steps.size()];
+        attributes = new String[steps.size()];
+        values = new String[steps.size()];
+        for(int i = 0; i < names.length; i++) {
+            names[i] = steps.get(i)[0];
+            attributes[i] = steps.get(i)[1];
+            values[i] = steps.get(i)[2];
+        }
+    }
+
+    /**
+     * @return the number of steps, which is the depth of the selected
+     *         elements
+     */
+    public int length() {
+        return names.length;
+    }
+
+    /**
+     * @return the element name of a step
+     */
+    public String name(int step) {
+        return names[step];
+    }
+
+    /**
+     * Check if an element matches a step of this path.
+     * 
+     * @param step
+     *            the step, which is the depth of the element
+     * @param name
+     *            the name of the element
+     * @param attributeValue
+     *            the value of the step's predicate attribute on that element
+     *            or null if it doesn't have it
+     * @return true if the element matches
+     */
+    public boolean matches(int step, String name, String attributeValue) {
+        return names[step].equals(name) && (attributes[step] == null || values[step].equals(attributeValue));
+    }
+
+    /**
+     * @return the attribute of a step's predicate or null if it has none
+     */
+    public String predicateAttribute(int step) {
+        return attributes[step];
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
@@ -0,0 +1,892 @@
+package equestria.canterlot.lunasdreamwalk.edit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import equestria.canterlot.lunasdreamwalk.util.ByteSink;
+import equestria.canterlot.lunasdreamwalk.util.SaveFileAdapter;
+
+/**
+ * Remembers where the editable parts of a decrypted savegame are located,
+ * so changes can be spliced into the original bytes without parsing and
+ * serializing the whole document. Everything that isn't changed keeps its
+ * original formatting.
+ *
+ * The index is built in a single scan. It knows the attributes and content
+ * of the first element of each indexed path, the Level element of every pony
+ * and the object containers of every map zone. The scanned buffer must not
+ * change while the index is used.
+ *
+ */
+public class OffsetIndex implements SaveIndex {
+
+    /**
+     * The paths that the editor can change
+     */
+    public static final String[] EDITABLE_PATHS = { SaveEdits.PLAYER_DATA, SaveEdits.SHARDS };
+
+    private static final String[] PONY_LEVEL_PATH = { "MLP_Save", "MapZone", "GameObjects", "Pony_Objects", "Object", "Game", "Level" };
+    private static final int PONY_OBJECT = 4;
+
+    private static final int ZONE = 1;
+    private static final int GAME_OBJECTS = 2;
+    private static final int CONTAINER = 3;
+
+    private static final byte[] COMMENT_END = { '-', '-', '>' };
+    private static final byte[] PI_END = { '?', '>' };
+    private static final byte[] CDATA_END = { ']', ']', '>' };
+
+    /**
+     * The location of an element within the scanned bytes
+     */
+    public static class ElementRange {
+
+        private final Map<String, int[]> attributes = new LinkedHashMap<String, int[]>();
+        private int tagEnd;
+        private int contentStart = -1;
+        private int contentEnd = -1;
+        private int childElements;
+
+        /**
+         * @return the offset of the "&gt;" or "/&gt;" that ends the start tag
+         */
+        public int getTagEnd() {
+            return tagEnd;
+        }
+
+        /**
+         * @return the start and end offset of an attribute's value, without
+         *         quotes, or null if the element doesn't have it
+         */
+        public int[] getAttribute(String name) {
+            return attributes.get(name);
+        }
+
+        /**
+         * @return the offset of the first byte after the start tag, or -1 for
+         *         an empty element
+         */
+        public int getContentStart() {
+            return contentStart;
+        }
+
+        /**
+         * @return the offset of the end tag, or -1 for an empty element
+         */
+        public int getContentEnd() {
+            return contentEnd;
+        }
+
+        /**
+         * @return the number of direct child elements
+         */
+        public int getChildElements() {
+            return childElements;
+        }
+    }
+
+    /**
+     * A MapZone with the object containers of its GameObjects element
+     */
+    public static class Zone {
+
+        private final String id;
+        private final Map<String, ElementRange> containers = new LinkedHashMap<String, ElementRange>();
+
+        private Zone(String id) {
+            this.id = id;
+        }
+
+        /**
+         * @return the ID of the zone, or null if it has none
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return the names of all containers, e.g. "Clearable_Objects", in
+         *         document order
+         */
+        public Set<String> getContainers() {
+            return Collections.unmodifiableSet(containers.keySet());
+        }
+
+        /**
+         * @return the exact number of objects in a container, which is 0 if
+         *         the zone doesn't have it
+         */
+        public int getObjectCount(String container) {
+            ElementRange range = containers.get(container);
+            return range == null ? 0 : range.childElements;
+        }
+    }
+
+    private final byte[] xml;
+    private final int start, end;
+    private final List<String> paths;
+    private final Map<String, ElementRange> elements = new LinkedHashMap<String, ElementRange>();
+    private final Map<String, ElementRange> ponies = new LinkedHashMap<String, ElementRange>();
+    private final List<Zone> zones = new ArrayList<Zone>();
+
+    private OffsetIndex(byte[] xml, int start, int end, List<String> paths) {
+        this.xml = xml;
+        this.start = start;
+        this.end = end;
+        this.paths = paths;
+    }
+
+    /**
+     * Scan the xml content of a savegame and index the editable paths.
+     *
+     * @param xml
+     *            a buffer with a backing array, whose remaining bytes are the
+     *            xml content, e.g. from SaveFileAdapter.getXMLBuffer()
+     * @return the index
+     * @throws IOException
+     *             if the content is not well-formed enough to be scanned
+     */
+    public static OffsetIndex scan(ByteBuffer xml) throws IOException {
+        return scan(xml, EDITABLE_PATHS);
+    }
+
+    /**
+     * Scan the xml content of a savegame.
+     *
+     * @param xml
+     *            a buffer with a backing array, whose remaining bytes are the
+     *            xml content, e.g. from SaveFileAdapter.getXMLBuffer()
+     * @param paths
+     *            the element paths to index
+     * @return the index
+     * @throws IOException
+     *             if the content is not well-formed enough to be scanned
+     */
+    public static OffsetIndex scan(ByteBuffer xml, String... paths) throws IOException {
+        int start = xml.arrayOffset() + xml.position();
+        OffsetIndex index = new OffsetIndex(xml.array(), start, start + xml.remaining(), Arrays.asList(paths));
+        index.scan();
+
+        return index;
+    }
+
+    private void scan() throws IOException {
+        int pathCount = paths.size();
+        ElementPath[] parsed = new ElementPath[pathCount];
+        for(int p = 0; p < pathCount; p++) {
+            parsed[p] = new ElementPath(paths.get(p));
+        }
+
+        // per depth: which paths (and the pony path as the last one) still
+        // match, the indexed element and the id of the pony
+        List<boolean[]> matching = new ArrayList<boolean[]>();
+        List<ElementRange> ranges = new ArrayList<ElementRange>();
+        String ponyId = null;
+
+        // the zone and its GameObjects that are open
+        boolean save = false;
+        Zone zone = null;
+        boolean gameObjects = false;
+
+        List<int[]> attributes = new ArrayList<int[]>();
+        int depth = 0;
+        int i = start;
+
+        while(i < end) {
+            if(xml[i] != '<') {
+                i++;
+                continue;
+            }
+
+            int skipped = skipMarkup(i);
+            if(skipped > i) {
+                i = skipped;
+            } else if(startsWith(i, "</")) {
+                if(depth == 0) {
+                    throw new IOException("Unexpected end tag at " + i);
+                }
+
+                depth--;
+                ElementRange range = ranges.get(depth);
+                if(range != null) {
+                    range.contentEnd = i;
+                }
+
+                i = skipPast(i + 2, new byte[] { '>' });
+            } else {
+                // start tag
+                int nameStart = i + 1, nameEnd = nameStart;
+                while(nameEnd < end && !isWhitespace(xml[nameEnd]) && xml[nameEnd] != '/' && xml[nameEnd] != '>') {
+                    nameEnd++;
+                }
+                String name = new String(xml, nameStart, nameEnd - nameStart, StandardCharsets.ISO_8859_1);
+
+                attributes.clear();
+                int tagEnd = parseAttributes(nameEnd, attributes);
+                boolean empty = xml[tagEnd] == '/';
+
+                if(depth > 0 && ranges.get(depth - 1) != null) {
+                    ranges.get(depth - 1).childElements++;
+                }
+
+                // check which paths still match at this depth
+                boolean[] parent = depth == 0 ? null : matching.get(depth - 1);
+                boolean[] current = new boolean[pathCount + 1];
+                ElementRange range = null;
+
+                for(int p = 0; p < pathCount; p++) {
+                    ElementPath path = parsed[p];
+                    if((parent != null && !parent[p]) || depth >= path.length()) {
+                        continue;
+                    }
+
+                    String predicate = path.predicateAttribute(depth);
+                    current[p] = path.matches(depth, name, predicate == null ? null : value(attributes, predicate));
+
+                    if(current[p] && depth == path.length() - 1 && !elements.containsKey(paths.get(p))) {
+                        range = range == null ? newRange(tagEnd, attributes) : range;
+                        elements.put(paths.get(p), range);
+                    }
+                }
+
+                if(depth == 0) {
+                    save = name.equals("MLP_Save");
+                } else if(depth == ZONE) {
+                    zone = save && name.equals("MapZone") ? new Zone(value(attributes, "ID")) : null;
+                    if(zone != null) {
+                        zones.add(zone);
+                    }
+                } else if(depth == GAME_OBJECTS) {
+                    gameObjects = zone != null && name.equals("GameObjects");
+                } else if(depth == CONTAINER && gameObjects && !zone.containers.containsKey(name)) {
+                    range = range == null ? newRange(tagEnd, attributes) : range;
+                    zone.containers.put(name, range);
+                }
+
+                if((parent == null || parent[pathCount]) && depth < PONY_LEVEL_PATH.length && PONY_LEVEL_PATH[depth].equals(name)) {
+                    current[pathCount] = true;
+
+                    if(depth == PONY_OBJECT) {
+                        ponyId = value(attributes, "ID");
+                    } else if(depth == PONY_LEVEL_PATH.length - 1 && ponyId != null && !ponies.containsKey(ponyId)) {
+                        range = range == null ? newRange(tagEnd, attributes) : range;
+                        ponies.put(ponyId, range);
+                    }
+                }
+
+                i = tagEnd + (empty ? 2 : 1);
+
+                if(!empty) {
+                    if(range != null) {
+                        range.contentStart = i;
+                    }
+
+                    set(matching, depth, current);
+                    set(ranges, depth, range);
+                    depth++;
+                }
+            }
+        }
+
+        if(depth != 0) {
+            throw new IOException("Unexpected end of xml content, " + depth + " elements are not closed");
+        }
+    }
+
+    private static <T> void set(List<T> list, int index, T value) {
+        if(index == list.size()) {
+            list.add(value);
+        } else {
+            list.set(index, value);
+        }
+    }
+
+    private ElementRange newRange(int tagEnd, List<int[]> attributes) {
+        ElementRange range = new ElementRange();
+        range.tagEnd = tagEnd;
+
+        for(int[] a : attributes) {
+            range.attributes.put(new String(xml, a[0], a[1] - a[0], StandardCharsets.ISO_8859_1), new int[] { a[2], a[3] });
+        }
+
+        return range;
+    }
+
+    /**
+     * Parse the attributes of a start tag into (name start, name end, value
+     * start, value end) tuples
+     *
+     * @return the offset of the "&gt;" or "/&gt;" that ends the tag
+     */
+    private int parseAttributes(int i, List<int[]> attributes) throws IOException {
+        while(true) {
+            while(i < end && isWhitespace(xml[i])) {
+                i++;
+            }
+
+            if(i >= end) {
+                throw new IOException("Unexpected end of xml content in a start tag");
+            }
+
+            if(xml[i] == '>' || (xml[i] == '/' && i + 1 < end && xml[i + 1] == '>')) {
+                return i;
+            }
+
+            int nameStart = i;
+            while(i < end && xml[i] != '=' && !isWhitespace(xml[i])) {
+                i++;
+            }
+            int nameEnd = i;
+
+            while(i < end && isWhitespace(xml[i])) {
+                i++;
+            }
+            if(i >= end || xml[i] != '=') {
+                throw new IOException("Invalid attribute at " + nameStart);
+            }
+            i++;
+            while(i < end && isWhitespace(xml[i])) {
+                i++;
+            }
+            if(i >= end || (xml[i] != '"' && xml[i] != '\'')) {
+                throw new IOException("Invalid attribute value at " + i);
+            }
+
+            byte quote = xml[i];
+            int valueStart = ++i;
+            while(i < end && xml[i] != quote) {
+                i++;
+            }
+            if(i >= end) {
+                throw new IOException("Unexpected end of xml content in an attribute value");
+            }
+
+            attributes.add(new int[] { nameStart, nameEnd, valueStart, i });
+            i++;
+        }
+    }
+
+    private String value(List<int[]> attributes, String name) {
+        for(int[] a : attributes) {
+            if(a[1] - a[0] == name.length() && startsWith(a[0], name)) {
+                return new String(xml, a[2], a[3] - a[2], StandardCharsets.ISO_8859_1);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Skip a comment, CDATA section, processing instruction or declaration
+     *
+     * @return the offset after it, or i if there is none at i
+     */
+    private int skipMarkup(int i) throws IOException {
+        if(startsWith(i, "<!--")) {
+            return skipPast(i + 4, COMMENT_END);
+        } else if(startsWith(i, "<![CDATA[")) {
+            return skipPast(i + 9, CDATA_END);
+        } else if(startsWith(i, "<?")) {
+            return skipPast(i + 2, PI_END);
+        } else if(startsWith(i, "<!")) {
+            return skipDeclaration(i + 2);
+        }
+
+        return i;
+    }
+
+    /**
+     * Skip a declaration like a DOCTYPE, including its internal subset
+     */
+    private int skipDeclaration(int i) throws IOException {
+        int brackets = 0;
+        byte quote = 0;
+
+        for(; i < end; i++) {
+            byte b = xml[i];
+            if(quote != 0) {
+                if(b == quote) {
+                    quote = 0;
+                }
+            } else if(b == '"' || b == '\'') {
+                quote = b;
+            } else if(b == '[') {
+                brackets++;
+            } else if(b == ']') {
+                brackets--;
+            } else if(b == '>' && brackets == 0) {
+                return i + 1;
+            }
+        }
+
+        throw new IOException("Unexpected end of xml content in a declaration");
+    }
+
+    private int skipPast(int i, byte[] terminator) throws IOException {
+        for(; i <= end - terminator.length; i++) {
+            int j = 0;
+            while(j < terminator.length && xml[i + j] == terminator[j]) {
+                j++;
+            }
+
+            if(j == terminator.length) {
+                return i + terminator.length;
+            }
+        }
+
+        throw new IOException("Unexpected end of xml content, missing " + new String(terminator, StandardCharsets.ISO_8859_1));
+    }
+
+    private boolean startsWith(int i, String text) {
+        if(i + text.length() > end) {
+            return false;
+        }
+
+        for(int j = 0; j < text.length(); j++) {
+            if(xml[i + j] != text.charAt(j)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    /**
+     * @return the first element of an indexed path, or null if the document
+     *         doesn't contain it
+     */
+    public ElementRange getElement(String path) {
+        return elements.get(path);
+    }
+
+    public boolean hasElement(String path) {
+        return elements.containsKey(path);
+    }
+
+    public String getAttribute(String path, String attribute) {
+        return getValue(elements.get(path), attribute);
+    }
+
+    /**
+     * @return the Level element of a pony, or null if there is no such pony
+     */
+    public ElementRange getPonyLevel(String ponyId) {
+        return ponies.get(ponyId);
+    }
+
+    public String getPonyAttribute(String ponyId, String attribute) {
+        return getValue(ponies.get(ponyId), attribute);
+    }
+
+    /**
+     * @return the ids of all ponies in document order
+     */
+    public Set<String> getPonyIds() {
+        return Collections.unmodifiableSet(ponies.keySet());
+    }
+
+    /**
+     * Read the raw value of an attribute, as it is written in the document
+     *
+     * @return the value or null if the element doesn't have the attribute
+     */
+    public String getValue(ElementRange element, String attribute) {
+        int[] range = element == null ? null : element.getAttribute(attribute);
+        if(range == null) {
+            return null;
+        }
+
+        return new String(xml, range[0], range[1] - range[0], StandardCharsets.ISO_8859_1);
+    }
+
+    public Map<String, Integer> getObjectCounts(String container) {
+        Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+        for(Zone zone : zones) {
+            if(zone.containers.containsKey(container)) {
+                Integer before = counts.get(zone.id);
+                counts.put(zone.id, zone.getObjectCount(container) + (before == null ? 0 : before));
+            }
+        }
+
+        return counts;
+    }
+
+    /**
+     * Splice changes into a copy of the scanned content. All paths of the
+     * changes must have been indexed.
+     *
+     * @param edits
+     *            the changes
+     * @return the changed xml content, including the padding
+     * @throws IllegalArgumentException
+     *             if a path of the changes is not indexed or doesn't exist in
+     *             the document, a pony doesn't exist or a cleanup rule
+     *             doesn't apply to any zone
+     * @throws IllegalStateException
+     *             if the result doesn't read back as the changed savegame
+     */
+    public ByteSink patch(SaveEdits edits) {
+        // check all paths first instead of failing halfway through
+        for(String path : edits.getAttributes().keySet()) {
+            element(path);
+        }
+        for(String id : edits.getPonyLevels().keySet()) {
+            if(!ponies.containsKey(id)) {
+                throw new IllegalArgumentException("No pony " + id);
+            }
+        }
+        for(CleanupRule rule : edits.getCleanups()) {
+            if(countCleanup(Collections.singletonList(rule)).isEmpty()) {
+                throw new IllegalArgumentException("No zone has " + rule.getContainer() + " for " + rule);
+            }
+        }
+
+        List<Splice> splices = new ArrayList<Splice>();
+
+        for(Map.Entry<String, Map<String, String>> e : edits.getAttributes().entrySet()) {
+            setAttributes(splices, element(e.getKey()), e.getValue());
+        }
+
+        for(Map.Entry<String, PonyLevel> e : edits.getPonyLevels().entrySet()) {
+            ElementRange level = ponies.get(e.getKey());
+            Map<String, String> values = new LinkedHashMap<String, String>();
+            values.put("Level", Integer.toString(e.getValue().getLevel()));
+            values.put("Shards", Integer.toString(e.getValue().getShards()));
+            values.put("CurrentEXP", Integer.toString(e.getValue().getXP()));
+            setAttributes(splices, level, values);
+        }
+
+        List<Splice> removals = new ArrayList<Splice>();
+        cleanup(edits.getCleanups(), removals);
+
+        // removals within other removals and changes inside of removed
+        // content are dropped with it
+        Collections.sort(removals, SPLICE_ORDER);
+        List<Splice> outer = new ArrayList<Splice>();
+        for(Splice removal : removals) {
+            if(outer.isEmpty() || removal.start >= outer.get(outer.size() - 1).end) {
+                outer.add(removal);
+            }
+        }
+
+        Collections.sort(splices, SPLICE_ORDER);
+        List<Splice> kept = new ArrayList<Splice>(outer);
+        int r = 0;
+        for(Splice s : splices) {
+            while(r < outer.size() && outer.get(r).end < s.end) {
+                r++;
+            }
+
+            if(r == outer.size() || s.start < outer.get(r).start) {
+                kept.add(s);
+            }
+        }
+
+        splices = kept;
+        Collections.sort(splices, SPLICE_ORDER);
+
+        int size = end - start;
+        for(Splice s : splices) {
+            size += s.replacement.length() - (s.end - s.start);
+        }
+
+        // leave room for the padding
+        ByteSink out = new ByteSink(size + 4);
+        int position = start;
+        for(Splice s : splices) {
+            out.write(xml, position, s.start - position);
+            out.write(s.replacement);
+            position = s.end;
+        }
+        out.write(xml, position, end - position);
+
+        SaveFileAdapter.appendPadding(out);
+
+        verify(out, edits);
+        return out;
+    }
+
+    /**
+     * Scan patched content again, so a savegame that is broken or misses a
+     * change is never written. One more scan costs a fraction of a load.
+     *
+     * @throws IllegalStateException
+     *             if the content can't be scanned or doesn't read back the
+     *             changes
+     */
+    private void verify(ByteSink patched, SaveEdits edits) {
+        OffsetIndex index;
+        try {
+            index = scan(ByteBuffer.wrap(patched.buffer(), 0, patched.size()), paths.toArray(new String[paths.size()]));
+        } catch(IOException e) {
+            throw new IllegalStateException("The changed xml content is invalid: " + e.getMessage());
+        }
+
+        for(Map.Entry<String, Map<String, String>> e : edits.getAttributes().entrySet()) {
+            for(Map.Entry<String, String> a : e.getValue().entrySet()) {
+                if(!a.getValue().equals(index.getValue(index.getElement(e.getKey()), a.getKey()))) {
+                    throw new IllegalStateException("The changed xml content lost " + a.getKey() + " of " + e.getKey());
+                }
+            }
+        }
+
+        for(Map.Entry<String, PonyLevel> e : edits.getPonyLevels().entrySet()) {
+            ElementRange level = index.getPonyLevel(e.getKey());
+            if(level == null || !Integer.toString(e.getValue().getLevel()).equals(index.getValue(level, "Level"))) {
+                throw new IllegalStateException("The changed xml content lost the level of " + e.getKey());
+            }
+        }
+
+        for(Map.Entry<String, Integer> count : index.countCleanup(edits.getCleanups()).entrySet()) {
+            if(count.getValue() > 0) {
+                throw new IllegalStateException("The changed xml content still has " + count.getValue() + " objects to clean up in zone " + count.getKey());
+            }
+        }
+    }
+
+    public Map<String, Integer> countCleanup(List<CleanupRule> rules) {
+        return cleanup(rules, null);
+    }
+
+    /**
+     * Apply cleanup rules to every zone, in one pass over all zones
+     *
+     * @param removals
+     *            receives the removed ranges, or null to only count
+     * @return the number of removed objects by zone ID
+     */
+    private Map<String, Integer> cleanup(List<CleanupRule> rules, List<Splice> removals) {
+        Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+        if(rules.isEmpty()) {
+            return counts;
+        }
+
+        List<CleanupRule> patterns = new ArrayList<CleanupRule>();
+        for(Zone zone : zones) {
+            int removed = 0;
+            boolean applies = false;
+
+            for(Map.Entry<String, ElementRange> c : zone.containers.entrySet()) {
+                ElementRange container = c.getValue();
+
+                boolean all = false;
+                patterns.clear();
+                for(CleanupRule rule : rules) {
+                    if(rule.appliesTo(zone.id, c.getKey())) {
+                        all |= rule.removesAll();
+                        patterns.add(rule);
+                    }
+                }
+
+                if(patterns.isEmpty()) {
+                    continue;
+                }
+                applies = true;
+
+                if(all) {
+                    // drop the whole content at once
+                    removed += container.childElements;
+                    if(removals != null && container.contentStart >= 0) {
+                        removals.add(new Splice(container.contentStart, container.contentEnd, ""));
+                    }
+                    continue;
+                }
+
+                if(container.contentStart >= 0) {
+                    int first = removals == null ? 0 : removals.size();
+                    int count = removeObjects(container, patterns, removals);
+                    if(removals != null && count > 0 && count == container.childElements) {
+                        // every object matched, write the same bytes as a
+                        // rule without a pattern
+                        removals.subList(first, removals.size()).clear();
+                        removals.add(new Splice(container.contentStart, container.contentEnd, ""));
+                    }
+                    removed += count;
+                }
+            }
+
+            if(applies) {
+                Integer before = counts.get(zone.id);
+                counts.put(zone.id, before == null ? removed : before + removed);
+            }
+        }
+
+        return counts;
+    }
+
+    /**
+     * Remove the objects of a container whose ID matches any of the rules.
+     * Their positions aren't kept by the scan, the content of the container
+     * is walked again instead.
+     *
+     * @param removals
+     *            receives the removed ranges, or null to only count
+     * @return the number of removed objects
+     */
+    private int removeObjects(ElementRange container, List<CleanupRule> rules, List<Splice> removals) {
+        List<int[]> attributes = new ArrayList<int[]>();
+        int removed = 0;
+        int depth = 0;
+        boolean removing = false;
+        int objectStart = -1, previousEnd = container.contentStart;
+        int i = container.contentStart;
+
+        try {
+            while(i < container.contentEnd) {
+                if(xml[i] != '<') {
+                    i++;
+                    continue;
+                }
+
+                int objectEnd = -1;
+                int skipped = skipMarkup(i);
+                if(skipped > i) {
+                    i = skipped;
+                } else if(startsWith(i, "</")) {
+                    depth--;
+                    i = skipPast(i + 2, new byte[] { '>' });
+                    if(depth == 0) {
+                        objectEnd = i;
+                    }
+                } else {
+                    int nameEnd = i + 1;
+                    while(nameEnd < end && !isWhitespace(xml[nameEnd]) && xml[nameEnd] != '/' && xml[nameEnd] != '>') {
+                        nameEnd++;
+                    }
+
+                    attributes.clear();
+                    int tagEnd = parseAttributes(nameEnd, attributes);
+                    boolean empty = xml[tagEnd] == '/';
+
+                    if(depth == 0) {
+                        objectStart = i;
+                        removing = removesAny(rules, value(attributes, "ID"));
+                    }
+
+                    i = tagEnd + (empty ? 2 : 1);
+                    if(!empty) {
+                        depth++;
+                    } else if(depth == 0) {
+                        objectEnd = i;
+                    }
+                }
+
+                if(objectEnd < 0) {
+                    continue;
+                }
+
+                if(removing) {
+                    removed++;
+                    if(removals != null) {
+                        // take the indentation along
+                        removals.add(new Splice(isWhitespace(previousEnd, objectStart) ? previousEnd : objectStart, objectEnd, ""));
+                    }
+                }
+                previousEnd = objectEnd;
+            }
+        } catch(IOException e) {
+            throw new IllegalStateException("The content changed since it was scanned", e);
+        }
+
+        return removed;
+    }
+
+    private static boolean removesAny(List<CleanupRule> rules, String id) {
+        for(CleanupRule rule : rules) {
+            if(rule.removes(id)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean isWhitespace(int from, int to) {
+        for(int i = from; i < to; i++) {
+            if(!isWhitespace(xml[i])) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return all map zones in document order
+     */
+    public List<Zone> getZones() {
+        return Collections.unmodifiableList(zones);
+    }
+
+    private ElementRange element(String path) {
+        if(!paths.contains(path)) {
+            throw new IllegalArgumentException("Path is not indexed: " + path);
+        }
+
+        ElementRange element = elements.get(path);
+        if(element == null) {
+            throw new IllegalArgumentException("No element at " + path);
+        }
+
+        return element;
+    }
+
+    private static void setAttributes(List<Splice> splices, ElementRange element, Map<String, String> values) {
+        StringBuilder added = new StringBuilder();
+
+        for(Map.Entry<String, String> v : values.entrySet()) {
+            int[] range = element.getAttribute(v.getKey());
+
+            if(range != null) {
+                splices.add(new Splice(range[0], range[1], v.getValue()));
+            } else {
+                added.append(' ').append(v.getKey()).append("=\"").append(v.getValue()).append('"');
+            }
+        }
+
+        if(added.length() > 0) {
+            splices.add(new Splice(element.tagEnd, element.tagEnd, added.toString()));
+        }
+    }
+
+    /**
+     * By start, the longer one first if two start at the same offset
+     */
+    private static final Comparator<Splice> SPLICE_ORDER = new Comparator<Splice>() {
+
+        public int compare(Splice a, Splice b) {
+            if(a.start != b.start) {
+                return a.start < b.start ? -1 : 1;
+            }
+
+            return a.end > b.end ? -1 : (a.end == b.end ? 0 : 1);
+        }
+    };
+
+    /**
+     * Replaces a range of the original content
+     */
+    private static class Splice {
+
+        final int start, end;
+        final String replacement;
+
+        Splice(int start, int end, String replacement) {
+            this.start = start;
+            this.end = end;
+            this.replacement = replacement;
+        }
+    }
+}
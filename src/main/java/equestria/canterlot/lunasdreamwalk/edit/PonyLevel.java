@@ -0,0 +1,71 @@
+package equestria.canterlot.lunasdreamwalk.edit;
+
+/**
+ * The progress of a pony, as stored in the attributes of its Level element.
+ * 
+ */
+public class PonyLevel {
+
+    public static final int MAX_LEVEL = 5;
+    public static final int MAX_SHARDS = 10;
+
+    private final int level;
+    private final int shards;
+    private final int xp;
+
+    private PonyLevel(int level, int shards, int xp) {
+        this.level = level;
+        this.shards = shards;
+        this.xp = xp;
+    }
+
+    /**
+     * Create a pony level with plausible values, e.g. adjusting shards/xp that
+     * the game would not accept for the given level.
+     * 
+     * @param level
+     *            the number of stars (0 - 5)
+     * @param shards
+     *            the progress towards the next star (0 - 10), where 10 shows
+     *            a blue star
+     * @param xp
+     *            the experience towards the next shard
+     * @return the sanitized pony level
+     */
+    public static PonyLevel sanitized(int level, int shards, int xp) {
+        if(level < 0)
+            level = 0;
+
+        if(level > MAX_LEVEL)
+            level = MAX_LEVEL;
+
+        if(level == MAX_LEVEL) {
+            shards = 0;
+            xp = 0;
+        }
+
+        if(shards < 0)
+            shards = 0;
+
+        if(shards > MAX_SHARDS)
+            shards = MAX_SHARDS;
+
+        if(shards == MAX_SHARDS) {
+            xp = 0;
+        }
+
+        return new PonyLevel(level, shards, xp);
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    public int getXP() {
+        return xp;
+    }
+}
@@ -0,0 +1,116 @@
+package equestria.canterlot.lunasdreamwalk.edit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A set of changes to a savegame: setting integer attributes, setting pony
+ * levels and cleaning up the map with CleanupRules. The input elements of
+ * the simple editor record their changes into one, the command line builds
+ * one from its arguments.
+ *
+ * Like an XPath lookup, every change of a path only affects the first element
+ * that matches the path. Cleanup rules apply to every matching zone.
+ *
+ */
+public class SaveEdits {
+
+    public static final String PLAYER_DATA = "/MLP_Save/PlayerData";
+    public static final String SHARDS = "/MLP_Save/PlayerData/Shards";
+
+    private final Map<String, ElementPath> paths = new LinkedHashMap<String, ElementPath>();
+    private final Map<String, Map<String, String>> attributes = new LinkedHashMap<String, Map<String, String>>();
+    private final Map<String, PonyLevel> ponyLevels = new LinkedHashMap<String, PonyLevel>();
+    private final List<CleanupRule> cleanups = new ArrayList<CleanupRule>();
+
+    private ElementPath path(String path) {
+        ElementPath p = paths.get(path);
+        if(p == null) {
+            p = new ElementPath(path);
+            paths.put(path, p);
+        }
+
+        return p;
+    }
+
+    /**
+     * Set an attribute of an element to an integer value
+     *
+     * @param path
+     *            the path of the element, e.g. PLAYER_DATA
+     * @param attribute
+     *            the name of the attribute
+     * @param value
+     *            the new value
+     */
+    public void setAttribute(String path, String attribute, int value) {
+        path(path);
+
+        Map<String, String> values = attributes.get(path);
+        if(values == null) {
+            values = new LinkedHashMap<String, String>();
+            attributes.put(path, values);
+        }
+
+        values.put(attribute, Integer.toString(value));
+    }
+
+    /**
+     * Set the level of a pony. The values are sanitized, as the editor does
+     * it.
+     *
+     * @param ponyId
+     *            the ID of the pony, e.g. "Pony_Applejack"
+     * @param level
+     *            the new level
+     */
+    public void setPonyLevel(String ponyId, PonyLevel level) {
+        ponyLevels.put(ponyId, level);
+    }
+
+    /**
+     * Remove objects from the map, in every zone the rule applies to
+     *
+     * @param rule
+     *            which objects to remove
+     */
+    public void addCleanup(CleanupRule rule) {
+        cleanups.add(rule);
+    }
+
+    /**
+     * @return the parsed path of an element that is used by any change
+     */
+    public ElementPath getPath(String path) {
+        return paths.get(path);
+    }
+
+    /**
+     * @return all element paths with attribute changes, mapped to the new
+     *         attribute values
+     */
+    public Map<String, Map<String, String>> getAttributes() {
+        return Collections.unmodifiableMap(attributes);
+    }
+
+    /**
+     * @return all pony ids with new levels
+     */
+    public Map<String, PonyLevel> getPonyLevels() {
+        return Collections.unmodifiableMap(ponyLevels);
+    }
+
+    /**
+     * @return all cleanup rules, in the order they were added
+     */
+    public List<CleanupRule> getCleanups() {
+        return Collections.unmodifiableList(cleanups);
+    }
+
+    public boolean isEmpty() {
+        return attributes.isEmpty() && ponyLevels.isEmpty() && cleanups.isEmpty();
+    }
+}
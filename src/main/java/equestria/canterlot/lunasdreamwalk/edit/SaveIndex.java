@@ -0,0 +1,77 @@
+package equestria.canterlot.lunasdreamwalk.edit;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import equestria.canterlot.lunasdreamwalk.util.ByteSink;
+
+/**
+ * Reads the editable values of a decrypted savegame and writes changes back.
+ * OffsetIndex splices the changes into the original bytes, DomIndex keeps a
+ * DOM and serializes it again like version 1.6 did. SaveModel and the
+ * command line work with either one.
+ *
+ */
+public interface SaveIndex {
+
+    /**
+     * @return true if the document has an element at one of the editable
+     *         paths, e.g. SaveEdits.PLAYER_DATA
+     */
+    public boolean hasElement(String path);
+
+    /**
+     * Read the raw value of an attribute of the first element at an editable
+     * path
+     *
+     * @return the value or null if there is no such element or attribute
+     */
+    public String getAttribute(String path, String attribute);
+
+    /**
+     * @return the ids of all ponies in document order
+     */
+    public Set<String> getPonyIds();
+
+    /**
+     * Read the raw value of an attribute of a pony's Level element
+     *
+     * @return the value or null if there is no such pony or attribute
+     */
+    public String getPonyAttribute(String ponyId, String attribute);
+
+    /**
+     * @param container
+     *            the name of a container, e.g. "Clearable_Objects"
+     * @return the exact number of objects in the container by zone ID, for
+     *         every zone that has it, in document order
+     */
+    public Map<String, Integer> getObjectCounts(String container);
+
+    /**
+     * Count the objects that cleanup rules would remove, without changing
+     * anything
+     *
+     * @param rules
+     *            the rules
+     * @return the number of removed objects of every zone the rules apply
+     *         to, by zone ID
+     */
+    public Map<String, Integer> countCleanup(List<CleanupRule> rules);
+
+    /**
+     * Write the content with the changes applied. The index itself isn't
+     * changed, so it can be written again with other changes.
+     *
+     * @param edits
+     *            the changes
+     * @return the changed xml content, including the padding
+     * @throws IllegalArgumentException
+     *             if a path of the changes is not editable or doesn't exist
+     *             in the document, a pony doesn't exist or a cleanup rule
+     *             doesn't apply to any zone
+     * @throws IllegalStateException
+     *             if the changed content can't be written
+     */
+    public ByteSink patch(SaveEdits edits);
+}
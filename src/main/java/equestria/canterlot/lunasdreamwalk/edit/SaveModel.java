@@ -0,0 +1,385 @@
+package equestria.canterlot.lunasdreamwalk.edit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import equestria.canterlot.lunasdreamwalk.util.ByteSink;
+
+/**
+ * The values of a savegame that the editor can change, kept in plain int
+ * arrays. It is read from a SaveIndex and written back through it. With the
+ * OffsetIndex that is a single scan of the decrypted bytes and splicing the
+ * changed values into them, so besides the content itself it only needs a
+ * few bytes per pony. A DomIndex can be chosen instead with the system
+ * property lunasdreamwalk.dom.
+ *
+ * Fields and containers are addressed by the constants of this class, ponies
+ * by their position in the id order. Changes are made with a SaveEdits, the
+ * same kind of change set the command line uses. The scanned buffer must
+ * not change while the model is used.
+ *
+ */
+public class SaveModel {
+
+    public static final int COINS = 0;
+    public static final int GEMS = 1;
+    public static final int HEARTS = 2;
+    public static final int LOYALTY_SHARDS = 3;
+    public static final int KINDNESS_SHARDS = 4;
+    public static final int HONESTY_SHARDS = 5;
+    public static final int GENEROSITY_SHARDS = 6;
+    public static final int LAUGHTER_SHARDS = 7;
+    public static final int MAGIC_SHARDS = 8;
+
+    private static final String[] FIELD_PATHS = { SaveEdits.PLAYER_DATA, SaveEdits.PLAYER_DATA, SaveEdits.PLAYER_DATA, SaveEdits.SHARDS, SaveEdits.SHARDS, SaveEdits.SHARDS, SaveEdits.SHARDS, SaveEdits.SHARDS, SaveEdits.SHARDS };
+    private static final String[] FIELD_ATTRIBUTES = { "Coins", "Hearts", "Social", "Loyalty", "Kindness", "Honesty", "Generosity", "Laughter", "Magic" };
+
+    public static final int CLEARABLE_OBJECTS = 0;
+    public static final int PARASPRITE_OBJECTS = 1;
+
+    private static final String[] CONTAINER_TYPES = { CleanupRule.CLEARABLE, CleanupRule.PARASPRITE };
+
+    /**
+     * The system property that selects the DomIndex, e.g.
+     * -Dlunasdreamwalk.dom=true
+     */
+    public static final String DOM_PROPERTY = "lunasdreamwalk.dom";
+
+    private final SaveIndex index;
+
+    private final int[] fields = new int[FIELD_PATHS.length];
+    private final int[] loadedFields = new int[FIELD_PATHS.length];
+    private final boolean[] hasField = new boolean[FIELD_PATHS.length];
+    private final boolean[] loadedHasField = new boolean[FIELD_PATHS.length];
+
+    private final String[] ponyIds;
+    private final int[] levels, shards, xp;
+    private final int[] loadedLevels, loadedShards, loadedXP;
+
+    private final int[] objectCounts = new int[CONTAINER_TYPES.length];
+    private final List<Map<String, Integer>> zoneObjectCounts = new ArrayList<Map<String, Integer>>();
+    private final List<CleanupRule> cleanups = new ArrayList<CleanupRule>();
+
+    private SaveModel(SaveIndex index) {
+        this.index = index;
+
+        for(int f = 0; f < fields.length; f++) {
+            String value = index.getAttribute(FIELD_PATHS[f], FIELD_ATTRIBUTES[f]);
+            try {
+                fields[f] = Integer.parseInt(value);
+                hasField[f] = true;
+            } catch(NumberFormatException e) {
+                // missing or not a number, has to be entered before it is
+                // written
+            }
+        }
+        System.arraycopy(fields, 0, loadedFields, 0, fields.length);
+        System.arraycopy(hasField, 0, loadedHasField, 0, fields.length);
+
+        Set<String> ids = index.getPonyIds();
+        ponyIds = new String[ids.size()];
+        int p = 0;
+        for(String id : ids) {
+            // the same few hundred ids appear in every savegame
+            ponyIds[p++] = id.intern();
+        }
+        Arrays.sort(ponyIds);
+
+        levels = new int[ponyIds.length];
+        shards = new int[ponyIds.length];
+        xp = new int[ponyIds.length];
+        for(p = 0; p < ponyIds.length; p++) {
+            levels[p] = parse(index.getPonyAttribute(ponyIds[p], "Level"));
+            shards[p] = parse(index.getPonyAttribute(ponyIds[p], "Shards"));
+            xp[p] = parse(index.getPonyAttribute(ponyIds[p], "CurrentEXP"));
+        }
+        loadedLevels = levels.clone();
+        loadedShards = shards.clone();
+        loadedXP = xp.clone();
+
+        for(int c = 0; c < CONTAINER_TYPES.length; c++) {
+            Map<String, Integer> counts = index.getObjectCounts(new CleanupRule(CONTAINER_TYPES[c]).getContainer());
+            objectCounts[c] = counts.isEmpty() ? -1 : 0;
+            for(int count : counts.values()) {
+                objectCounts[c] += count;
+            }
+            zoneObjectCounts.add(Collections.unmodifiableMap(counts));
+        }
+    }
+
+    private static int parse(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch(NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Read the xml content of a savegame into an OffsetIndex, or into a
+     * DomIndex if the system property DOM_PROPERTY is true
+     *
+     * @param xml
+     *            a buffer with a backing array, whose remaining bytes are the
+     *            xml content, e.g. from SaveFileAdapter.getXMLBuffer()
+     * @return the index
+     * @throws IOException
+     *             if the content is not well-formed enough to be read
+     */
+    public static SaveIndex index(ByteBuffer xml) throws IOException {
+        if(Boolean.getBoolean(DOM_PROPERTY)) {
+            return DomIndex.parse(xml);
+        }
+
+        return OffsetIndex.scan(xml);
+    }
+
+    /**
+     * Build the model from the xml content of a savegame.
+     *
+     * @param xml
+     *            a buffer with a backing array, whose remaining bytes are the
+     *            xml content, e.g. from SaveFileAdapter.getXMLBuffer()
+     * @return the model
+     * @throws IOException
+     *             if the content is not well-formed enough to be read
+     * @see #index(ByteBuffer)
+     */
+    public static SaveModel scan(ByteBuffer xml) throws IOException {
+        return new SaveModel(index(xml));
+    }
+
+    /**
+     * @return the path of the element that holds a field, e.g.
+     *         SaveEdits.PLAYER_DATA
+     */
+    public static String getFieldPath(int field) {
+        return FIELD_PATHS[field];
+    }
+
+    /**
+     * @return the attribute that holds a field
+     */
+    public static String getFieldAttribute(int field) {
+        return FIELD_ATTRIBUTES[field];
+    }
+
+    /**
+     * @return the type of the objects of a container, e.g.
+     *         CleanupRule.CLEARABLE
+     */
+    public static String getContainerType(int container) {
+        return CONTAINER_TYPES[container];
+    }
+
+    /**
+     * @return true if the savegame has a numeric value for the field
+     */
+    public boolean hasField(int field) {
+        return hasField[field];
+    }
+
+    public int getField(int field) {
+        return fields[field];
+    }
+
+    /**
+     * @return the number of ponies, which are sorted by id
+     */
+    public int getPonyCount() {
+        return ponyIds.length;
+    }
+
+    public String getPonyId(int pony) {
+        return ponyIds[pony];
+    }
+
+    /**
+     * @return the position of a pony, or a negative value if there is no such
+     *         pony
+     */
+    public int indexOfPony(String ponyId) {
+        return Arrays.binarySearch(ponyIds, ponyId);
+    }
+
+    public int getPonyLevel(int pony) {
+        return levels[pony];
+    }
+
+    public int getPonyShards(int pony) {
+        return shards[pony];
+    }
+
+    public int getPonyXP(int pony) {
+        return xp[pony];
+    }
+
+    private void setPonyLevel(int pony, PonyLevel level) {
+        levels[pony] = level.getLevel();
+        shards[pony] = level.getShards();
+        xp[pony] = level.getXP();
+    }
+
+    /**
+     * @return the number of objects of a container in all zones, or -1 if no
+     *         zone has the container
+     */
+    public int getObjectCount(int container) {
+        return objectCounts[container];
+    }
+
+    /**
+     * @return the exact number of objects of a container by zone ID, for
+     *         every zone that has the container
+     */
+    public Map<String, Integer> getObjectCounts(int container) {
+        return zoneObjectCounts.get(container);
+    }
+
+    /**
+     * @return true if all objects of a container will be removed from every
+     *         zone
+     */
+    public boolean isRemoved(int container) {
+        for(CleanupRule rule : cleanups) {
+            if(rule.getType().equals(CONTAINER_TYPES[container]) && rule.getZones() == null && rule.removesAll()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the number of objects the cleanup rules remove, by zone ID
+     */
+    public Map<String, Integer> getCleanupCounts() {
+        return index.countCleanup(cleanups);
+    }
+
+    /**
+     * Apply a set of changes, e.g. the ones recorded by the editor. All
+     * changes are checked first, so either all of them are applied or none.
+     *
+     * @param changes
+     *            the changes. Attributes can only be set for the fields of
+     *            this model. Cleanup rules must apply to a container of at
+     *            least one zone.
+     * @throws IllegalArgumentException
+     *             if any of the changes has no target in this model
+     */
+    public void apply(SaveEdits changes) {
+        List<int[]> values = new ArrayList<int[]>();
+        for(Map.Entry<String, Map<String, String>> e : changes.getAttributes().entrySet()) {
+            for(Map.Entry<String, String> a : e.getValue().entrySet()) {
+                int field = indexOf(e.getKey(), a.getKey());
+                if(field < 0) {
+                    throw new IllegalArgumentException("Can't change " + a.getKey() + " of " + e.getKey());
+                }
+                if(!index.hasElement(FIELD_PATHS[field])) {
+                    throw new IllegalArgumentException("No element at " + FIELD_PATHS[field]);
+                }
+
+                values.add(new int[] { field, Integer.parseInt(a.getValue()) });
+            }
+        }
+
+        List<Integer> ponies = new ArrayList<Integer>();
+        for(String id : changes.getPonyLevels().keySet()) {
+            int pony = indexOfPony(id);
+            if(pony < 0) {
+                throw new IllegalArgumentException("No pony " + id);
+            }
+
+            ponies.add(pony);
+        }
+
+        for(CleanupRule rule : changes.getCleanups()) {
+            if(index.countCleanup(Collections.singletonList(rule)).isEmpty()) {
+                throw new IllegalArgumentException("No zone has " + rule.getContainer() + " for " + rule);
+            }
+        }
+
+        for(int[] v : values) {
+            fields[v[0]] = v[1];
+            hasField[v[0]] = true;
+        }
+
+        int p = 0;
+        for(PonyLevel level : changes.getPonyLevels().values()) {
+            setPonyLevel(ponies.get(p++), level);
+        }
+
+        cleanups.addAll(changes.getCleanups());
+    }
+
+    private static int indexOf(String path, String attribute) {
+        for(int f = 0; f < FIELD_PATHS.length; f++) {
+            if(FIELD_PATHS[f].equals(path) && FIELD_ATTRIBUTES[f].equals(attribute)) {
+                return f;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return true if any value differs from the loaded one, i.e. write()
+     *         would not return the original content
+     */
+    public boolean isChanged() {
+        for(int count : getCleanupCounts().values()) {
+            if(count > 0) {
+                return true;
+            }
+        }
+
+        for(int f = 0; f < fields.length; f++) {
+            if(hasField[f] && (!loadedHasField[f] || fields[f] != loadedFields[f])) {
+                return true;
+            }
+        }
+
+        return !Arrays.equals(levels, loadedLevels) || !Arrays.equals(shards, loadedShards) || !Arrays.equals(xp, loadedXP);
+    }
+
+    /**
+     * @return the differences to the loaded values
+     */
+    public SaveEdits getEdits() {
+        SaveEdits edits = new SaveEdits();
+
+        for(int f = 0; f < fields.length; f++) {
+            if(hasField[f] && (!loadedHasField[f] || fields[f] != loadedFields[f])) {
+                edits.setAttribute(FIELD_PATHS[f], FIELD_ATTRIBUTES[f], fields[f]);
+            }
+        }
+
+        for(int p = 0; p < ponyIds.length; p++) {
+            if(levels[p] != loadedLevels[p] || shards[p] != loadedShards[p] || xp[p] != loadedXP[p]) {
+                edits.setPonyLevel(ponyIds[p], PonyLevel.sanitized(levels[p], shards[p], xp[p]));
+            }
+        }
+
+        for(CleanupRule rule : cleanups) {
+            edits.addCleanup(rule);
+        }
+
+        return edits;
+    }
+
+    /**
+     * Write the content with the changed values. With the OffsetIndex,
+     * anything that wasn't changed keeps its original bytes.
+     *
+     * @return the xml content, including the padding
+     */
+    public ByteSink write() {
+        return index.patch(getEdits());
+    }
+}
@@ -0,0 +1,390 @@
+package equestria.canterlot.lunasdreamwalk.edit;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import equestria.canterlot.lunasdreamwalk.util.ByteSink;
+import equestria.canterlot.lunasdreamwalk.util.SaveFileAdapter;
+import equestria.canterlot.lunasdreamwalk.xml.MarkupEventWriter;
+import equestria.canterlot.lunasdreamwalk.xml.MarkupWriter;
+
+/**
+ * Applies SaveEdits to a savegame while it streams from the decrypted xml to
+ * the output, without a DOM or an index. Apart from the input and the output,
+ * only the currently open elements and the whitespace between the objects of
+ * a container that is cleaned up are kept in memory.
+ *
+ * The output is byte for byte what DomIndex writes for the same changes: the
+ * whole document is serialized again, removed objects take their indentation
+ * along and a container whose objects are all removed is left empty.
+ *
+ */
+public class StreamingSaveEditor {
+
+    private static final String[] PONY_LEVEL_PATH = { "MLP_Save", "MapZone", "GameObjects", "Pony_Objects", "Object", "Game", "Level" };
+    private static final int PONY_OBJECT = 4;
+
+    private static final String[] MAP_OBJECTS_PATH = { "MLP_Save", "MapZone", "GameObjects" };
+    private static final int ZONE_DEPTH = 2;
+    private static final int CONTAINER_DEPTH = 4;
+
+    private static final String REPORT_CDATA = "http://java.sun.com/xml/stream/properties/report-cdata-event";
+
+    private final SaveEdits edits;
+    private final XMLInputFactory inputFactory;
+    private final XMLEventFactory eventFactory;
+
+    public StreamingSaveEditor(SaveEdits edits) {
+        this.edits = edits;
+
+        this.inputFactory = XMLInputFactory.newInstance();
+        this.inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+        this.inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+        this.inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+
+        // the DOM keeps CDATA sections, so the parser must report them
+        if(this.inputFactory.isPropertySupported(REPORT_CDATA)) {
+            this.inputFactory.setProperty(REPORT_CDATA, Boolean.TRUE);
+        }
+
+        this.eventFactory = XMLEventFactory.newInstance();
+    }
+
+    /**
+     * The container of the current zone that cleanup rules apply to
+     */
+    private static class Cleanup {
+
+        final String zone;
+        final List<CleanupRule> rules;
+        final boolean all;
+        int removed;
+        boolean kept;
+
+        /**
+         * Text, comments and processing instructions since the last object
+         * that was kept. They are dropped if all objects are removed.
+         */
+        final List<XMLEvent> pending = new ArrayList<XMLEvent>();
+
+        Cleanup(String zone, List<CleanupRule> rules) {
+            this.zone = zone;
+            this.rules = rules;
+
+            boolean all = false;
+            for(CleanupRule rule : rules) {
+                all |= rule.removesAll();
+            }
+            this.all = all;
+        }
+
+        boolean removes(String objectId) {
+            if(all) {
+                return true;
+            }
+
+            for(CleanupRule rule : rules) {
+                if(rule.removes(objectId)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * Drop the text right before an object that is removed, if it is
+         * only whitespace
+         */
+        void dropIndentation() {
+            int start = pending.size();
+            StringBuilder text = new StringBuilder();
+            while(start > 0 && isText(pending.get(start - 1))) {
+                start--;
+                text.insert(0, pending.get(start).asCharacters().getData());
+            }
+
+            if(start < pending.size() && text.toString().trim().isEmpty()) {
+                pending.subList(start, pending.size()).clear();
+            }
+        }
+
+        void flush(XMLEventWriter writer) throws XMLStreamException {
+            for(XMLEvent event : pending) {
+                writer.add(event);
+            }
+            pending.clear();
+        }
+
+        private static boolean isText(XMLEvent event) {
+            return event.isCharacters() && !event.asCharacters().isCData();
+        }
+    }
+
+    /**
+     * Stream a savegame through the edits. If a change has no target, the
+     * output is incomplete and must be discarded.
+     *
+     * @param xml
+     *            the xml content as single byte characters
+     * @param out
+     *            receives the edited xml content, including the padding
+     * @return the number of objects the cleanup rules removed, by zone ID
+     * @throws XMLStreamException
+     *             if the xml is invalid
+     * @throws IllegalArgumentException
+     *             if a path of the changes is not editable or doesn't exist
+     *             in the document, a pony doesn't exist or a cleanup rule
+     *             doesn't apply to any zone
+     */
+    public Map<String, Integer> edit(InputStream xml, ByteSink out) throws XMLStreamException {
+        // check the paths first instead of streaming in vain
+        for(String path : edits.getAttributes().keySet()) {
+            if(!Arrays.asList(OffsetIndex.EDITABLE_PATHS).contains(path)) {
+                throw new IllegalArgumentException("Path is not indexed: " + path);
+            }
+        }
+
+        XMLEventReader reader = inputFactory.createXMLEventReader(new InputStreamReader(xml, StandardCharsets.ISO_8859_1));
+        XMLEventWriter writer = new MarkupEventWriter(new MarkupWriter(out));
+
+        List<StartElement> open = new ArrayList<StartElement>();
+        Set<String> applied = new HashSet<String>();
+        Set<String> ponies = new HashSet<String>();
+        Set<CleanupRule> usedRules = new HashSet<CleanupRule>();
+        Set<String> containers = new HashSet<String>();
+        Map<String, Integer> removed = new LinkedHashMap<String, Integer>();
+        Cleanup cleanup = null;
+        int skipping = -1;
+
+        while(reader.hasNext()) {
+            XMLEvent event = reader.nextEvent();
+
+            if(event.isStartElement()) {
+                StartElement element = event.asStartElement();
+                open.add(element);
+
+                // the DOM editor would have changed the element before
+                // removing it
+                Map<String, String> changes = attributeChanges(open, applied);
+                changePonyLevel(open, ponies, changes);
+
+                if(skipping >= 0) {
+                    continue;
+                }
+
+                if(isZone(open)) {
+                    containers.clear();
+                } else if(isContainer(open) && containers.add(name(element.getName()))) {
+                    // only the first container of a name in a zone is
+                    // cleaned up
+                    cleanup = cleanup(open, usedRules);
+                    if(cleanup != null && !removed.containsKey(cleanup.zone)) {
+                        removed.put(cleanup.zone, 0);
+                    }
+                } else if(cleanup != null && open.size() == CONTAINER_DEPTH + 1) {
+                    if(cleanup.removes(attribute(element, "ID"))) {
+                        cleanup.removed++;
+                        cleanup.dropIndentation();
+                        skipping = open.size();
+                        continue;
+                    }
+
+                    cleanup.kept = true;
+                    cleanup.flush(writer);
+                }
+
+                if(!changes.isEmpty()) {
+                    element = withAttributes(element, changes);
+                }
+                writer.add(element);
+            } else if(event.isEndElement()) {
+                if(skipping >= 0) {
+                    if(open.size() == skipping) {
+                        skipping = -1;
+                    }
+                    open.remove(open.size() - 1);
+                    continue;
+                }
+
+                if(cleanup != null && open.size() == CONTAINER_DEPTH) {
+                    if(cleanup.all || (cleanup.removed > 0 && !cleanup.kept)) {
+                        // the whole content goes, like in DomIndex
+                        cleanup.pending.clear();
+                    }
+                    cleanup.flush(writer);
+                    removed.put(cleanup.zone, removed.get(cleanup.zone) + cleanup.removed);
+                    cleanup = null;
+                }
+
+                open.remove(open.size() - 1);
+                writer.add(event);
+            } else if(skipping >= 0) {
+                continue;
+            } else if(cleanup != null && open.size() == CONTAINER_DEPTH) {
+                cleanup.pending.add(event);
+            } else {
+                writer.add(event);
+            }
+        }
+
+        reader.close();
+        SaveFileAdapter.appendPadding(out);
+
+        for(String path : edits.getAttributes().keySet()) {
+            if(!applied.contains(path)) {
+                throw new IllegalArgumentException("No element at " + path);
+            }
+        }
+        for(String id : edits.getPonyLevels().keySet()) {
+            if(!ponies.contains(id)) {
+                throw new IllegalArgumentException("No pony " + id);
+            }
+        }
+        for(CleanupRule rule : edits.getCleanups()) {
+            if(!usedRules.contains(rule)) {
+                throw new IllegalArgumentException("No zone has " + rule.getContainer() + " for " + rule);
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * Collect the attribute changes of all paths that match the open
+     * elements for the first time
+     */
+    private Map<String, String> attributeChanges(List<StartElement> open, Set<String> applied) {
+        Map<String, String> changes = new LinkedHashMap<String, String>();
+
+        for(Map.Entry<String, Map<String, String>> e : edits.getAttributes().entrySet()) {
+            if(!applied.contains(e.getKey()) && matches(edits.getPath(e.getKey()), open)) {
+                applied.add(e.getKey());
+                changes.putAll(e.getValue());
+            }
+        }
+
+        return changes;
+    }
+
+    private static boolean isZone(List<StartElement> open) {
+        return open.size() == ZONE_DEPTH && startsWith(open, MAP_OBJECTS_PATH, ZONE_DEPTH);
+    }
+
+    private static boolean isContainer(List<StartElement> open) {
+        return open.size() == CONTAINER_DEPTH && startsWith(open, MAP_OBJECTS_PATH, MAP_OBJECTS_PATH.length);
+    }
+
+    private static boolean startsWith(List<StartElement> open, String[] path, int length) {
+        for(int i = 0; i < length; i++) {
+            if(!path[i].equals(name(open.get(i).getName()))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the cleanup of the open container, or null if no rule applies
+     *         to it
+     */
+    private Cleanup cleanup(List<StartElement> open, Set<CleanupRule> usedRules) {
+        String zone = attribute(open.get(ZONE_DEPTH - 1), "ID");
+        String name = name(open.get(CONTAINER_DEPTH - 1).getName());
+
+        List<CleanupRule> rules = new ArrayList<CleanupRule>();
+        for(CleanupRule rule : edits.getCleanups()) {
+            if(rule.appliesTo(zone, name)) {
+                rules.add(rule);
+                usedRules.add(rule);
+            }
+        }
+
+        return rules.isEmpty() ? null : new Cleanup(zone, rules);
+    }
+
+    private void changePonyLevel(List<StartElement> open, Set<String> ponies, Map<String, String> changes) {
+        if(open.size() != PONY_LEVEL_PATH.length || !startsWith(open, PONY_LEVEL_PATH, PONY_LEVEL_PATH.length)) {
+            return;
+        }
+
+        String id = attribute(open.get(PONY_OBJECT), "ID");
+        PonyLevel level = edits.getPonyLevels().get(id);
+
+        // only the first Level element of a pony counts
+        if(id == null || !ponies.add(id) || level == null) {
+            return;
+        }
+
+        changes.put("Level", Integer.toString(level.getLevel()));
+        changes.put("Shards", Integer.toString(level.getShards()));
+        changes.put("CurrentEXP", Integer.toString(level.getXP()));
+    }
+
+    private static boolean matches(ElementPath path, List<StartElement> open) {
+        if(path.length() != open.size()) {
+            return false;
+        }
+
+        for(int i = 0; i < open.size(); i++) {
+            StartElement e = open.get(i);
+            String predicate = path.predicateAttribute(i);
+
+            if(!path.matches(i, name(e.getName()), predicate == null ? null : attribute(e, predicate))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private StartElement withAttributes(StartElement element, Map<String, String> changes) {
+        List<Attribute> attributes = new ArrayList<Attribute>();
+        Map<String, String> remaining = new LinkedHashMap<String, String>(changes);
+
+        for(Iterator<Attribute> it = element.getAttributes(); it.hasNext();) {
+            Attribute a = it.next();
+            String value = remaining.remove(name(a.getName()));
+            attributes.add(value == null ? a : eventFactory.createAttribute(a.getName(), value));
+        }
+
+        for(Map.Entry<String, String> e : remaining.entrySet()) {
+            attributes.add(eventFactory.createAttribute(e.getKey(), e.getValue()));
+        }
+
+        return eventFactory.createStartElement(element.getName(), attributes.iterator(), element.getNamespaces());
+    }
+
+    private static String attribute(StartElement element, String name) {
+        Attribute a = element.getAttributeByName(new QName(name));
+        return a == null ? null : a.getValue();
+    }
+
+    private static String name(QName name) {
+        String prefix = name.getPrefix();
+        if(prefix == null || prefix.length() == 0) {
+            return name.getLocalPart();
+        }
+
+        return prefix + ":" + name.getLocalPart();
+    }
+}
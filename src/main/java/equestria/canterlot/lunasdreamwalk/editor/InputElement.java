@@ -1,27 +1,42 @@
 package equestria.canterlot.lunasdreamwalk.editor;
 
-import javax.xml.xpath.XPathExpressionException;
+import equestria.canterlot.lunasdreamwalk.edit.SaveEdits;
 
 /**
  * An InputElement is intended to show the current state of a part of the
- * underlying XML-Object and allow to declare specific changes to that part,
- * e.g. modifying values or removing nodes.
+ * underlying SaveModel and allow to declare specific changes to that part,
+ * e.g. modifying values or removing objects.
  * 
- * Those changes can then be applied when needed.
+ * Those changes are recorded into a change set when needed, which the editor
+ * then applies as a whole. Elements that weren't changed are skipped. The
+ * editor resets each element once when it is added, so it shows the current
+ * state.
  * 
  */
 public interface InputElement {
 
     /**
-     * Apply changes to the underlying XML-Object
+     * Record the changes of this element. Nothing is changed yet, so an
+     * invalid input can still stop all changes.
+     * 
+     * @param changes
+     *            the change set of all elements
+     * @throws IllegalArgumentException
+     *             if the input is invalid
+     */
+    public void apply(SaveEdits changes);
+
+    /**
+     * Reset element with data from underlying SaveModel
      */
-    public void apply() throws XPathExpressionException;
+    public void reset();
 
     /**
-     * Reset element with data from underlying XML-Object
-     * @throws XPathExpressionException 
+     * @return true if the element shows something else than the SaveModel
+     *         holds, i.e. apply() would change it. After reset() an element
+     *         is only dirty if it had to correct the values of the model.
      */
-    public void reset() throws XPathExpressionException;
+    public boolean isDirty();
 
     /**
      * Get an identifier that can be shown to the user in the UI and error
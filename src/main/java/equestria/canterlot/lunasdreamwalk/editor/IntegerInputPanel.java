@@ -9,13 +9,12 @@ import javax.swing.JPanel;
 import javax.swing.JTextField;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
-import javax.xml.xpath.XPathExpressionException;
-import org.w3c.dom.Element;
-import equestria.canterlot.lunasdreamwalk.SimpleEditor;
+import equestria.canterlot.lunasdreamwalk.edit.SaveEdits;
+import equestria.canterlot.lunasdreamwalk.edit.SaveModel;
 
 /**
- * The NumberInputField represents a single attribute of a single Node of
- * the underlying xml document. That attribute only accepts integers.
+ * The NumberInputField represents a single integer field of the underlying
+ * SaveModel, e.g. the coins.
  * 
  */
 public class IntegerInputPanel extends JPanel implements InputElement {
@@ -24,37 +23,32 @@ public class IntegerInputPanel extends JPanel implements InputElement {
      * 
      */
     private static final long serialVersionUID = 1749170444373429282L;
-    private final SimpleEditor editor;
+    private final SaveModel model;
     private final JTextField input;
     private final String name;
     private final int min, max;
     private final BigInteger bMin, bMax;
-    private final String xmlPath;
-    private final String attributeName;
+    private final int field;
 
     /**
-     * @param editor
-     *            The editor that this component is part of
+     * @param model
+     *            The savegame that this component edits
      * @param name
      *            A human readable and understandable description of the
-     *            to-be-edited attribute
-     * @param xmlPath
-     *            the tag of the to-be-edited node
-     * @param attributeName
-     *            the attribute of that node that will be edited
+     *            to-be-edited field
+     * @param field
+     *            the field that will be edited, e.g. SaveModel.COINS
      * @param min
      *            the minimum value for this field (too small values will be
      *            replaced by min)
      * @param max
      *            the maximum value for this field (too high values will be
      *            replaced by max)
-     * @throws XPathExpressionException 
      */
-    public IntegerInputPanel(SimpleEditor editor, String name, String xmlPath, String attributeName, int min, int max) throws XPathExpressionException {
-        this.editor = editor;
+    public IntegerInputPanel(SaveModel model, String name, int field, int min, int max) {
+        this.model = model;
         this.name = name;
-        this.xmlPath = xmlPath;
-        this.attributeName = attributeName;
+        this.field = field;
 
         this.input = new JTextField();
 
@@ -85,11 +79,10 @@ public class IntegerInputPanel extends JPanel implements InputElement {
         this.add(input);
         this.add(Box.createHorizontalStrut(10));
         this.add(new JLabel(min + " - " + max));
-        reset();
     }
 
     private void verify() {
-        String text = ((JTextField) input).getText();
+        String text = input.getText();
 
         if(text.length() == 0) {
             return;
@@ -111,13 +104,19 @@ public class IntegerInputPanel extends JPanel implements InputElement {
         }
     }
 
-    public void reset() throws XPathExpressionException {
-        Element e = editor.getXMLElementByString(this.xmlPath);
+    public void reset() {
+        input.setText(getModelText());
+    }
+
+    private String getModelText() {
+        return model.hasField(field) ? Integer.toString(model.getField(field)) : "";
+    }
 
-        input.setText(e.getAttribute(this.attributeName));
+    public boolean isDirty() {
+        return !input.getText().equals(getModelText());
     }
 
-    public void apply() throws XPathExpressionException {
+    public void apply(SaveEdits changes) {
 
         int value = Integer.parseInt(input.getText());
 
@@ -130,8 +129,7 @@ public class IntegerInputPanel extends JPanel implements InputElement {
             throw new IllegalArgumentException("Value is " + value + ". Has to be < " + max);
         }
 
-        Element e = editor.getXMLElementByString(this.xmlPath);
-        e.setAttribute(attributeName, Integer.toString(value));
+        changes.setAttribute(SaveModel.getFieldPath(field), SaveModel.getFieldAttribute(field), value);
     }
 
     public String name() {
@@ -0,0 +1,162 @@
+package equestria.canterlot.lunasdreamwalk.editor;
+
+import java.awt.Component;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+import javax.swing.AbstractAction;
+import javax.swing.JComponent;
+import javax.swing.JTable;
+import javax.swing.KeyStroke;
+import javax.swing.ListSelectionModel;
+import javax.swing.table.TableCellRenderer;
+import equestria.canterlot.lunasdreamwalk.edit.PonyLevel;
+
+/**
+ * Shows the ponies of a PonyTableModel with their stars. A single renderer
+ * paints the level of every visible row, so nothing is created per pony.
+ *
+ * Clicking minus or plus, or pressing '-' or '+' with rows selected, changes
+ * the level.
+ *
+ */
+public class PonyTable extends JTable {
+
+    /**
+     *
+     */
+    private static final long serialVersionUID = -2591626035184357260L;
+
+    private static BufferedImage starIcon, starEmptyIcon, starBlueIcon,
+                    plusIcon, minusIcon;
+    private static final int STAR_SIZE = 15;
+
+    /**
+     * Horizontal positions of minus, stars and plus within the level column
+     */
+    private static final int MINUS_X = 5;
+    private static final int STARS_X = MINUS_X + STAR_SIZE + 5;
+    private static final int PLUS_X = STARS_X + STAR_SIZE * PonyLevel.MAX_LEVEL + 5;
+    private static final int LEVEL_WIDTH = PLUS_X + STAR_SIZE + 5;
+
+    static {
+        try {
+            starIcon = ImageIO.read(PonyTable.class.getResource("/images/star.png"));
+            starEmptyIcon = ImageIO.read(PonyTable.class.getResource("/images/star_empty.png"));
+            starBlueIcon = ImageIO.read(PonyTable.class.getResource("/images/star_blue.png"));
+            plusIcon = ImageIO.read(PonyTable.class.getResource("/images/plus.png"));
+            minusIcon = ImageIO.read(PonyTable.class.getResource("/images/minus.png"));
+
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private final PonyTableModel model;
+
+    public PonyTable(PonyTableModel model) {
+        super(model);
+        this.model = model;
+
+        setRowHeight(STAR_SIZE + 4);
+        setFillsViewportHeight(true);
+        setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+        getTableHeader().setReorderingAllowed(false);
+
+        getColumnModel().getColumn(PonyTableModel.LEVEL_COLUMN).setCellRenderer(new LevelRenderer());
+        getColumnModel().getColumn(PonyTableModel.LEVEL_COLUMN).setMinWidth(LEVEL_WIDTH);
+        getColumnModel().getColumn(PonyTableModel.LEVEL_COLUMN).setMaxWidth(LEVEL_WIDTH);
+
+        addMouseListener(new MouseAdapter() {
+
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int row = rowAtPoint(e.getPoint());
+                int column = columnAtPoint(e.getPoint());
+                if(row < 0 || convertColumnIndexToModel(column) != PonyTableModel.LEVEL_COLUMN) {
+                    return;
+                }
+
+                Rectangle cell = getCellRect(row, column, false);
+                int x = e.getX() - cell.x;
+                int modelRow = convertRowIndexToModel(row);
+
+                if(x >= MINUS_X && x < MINUS_X + STAR_SIZE) {
+                    PonyTable.this.model.decrease(modelRow);
+                } else if(x >= PLUS_X && x < PLUS_X + STAR_SIZE) {
+                    PonyTable.this.model.increase(modelRow);
+                }
+            }
+        });
+
+        bindKey(KeyEvent.VK_PLUS, KeyEvent.VK_ADD, "increase", true);
+        bindKey(KeyEvent.VK_MINUS, KeyEvent.VK_SUBTRACT, "decrease", false);
+    }
+
+    private void bindKey(int key, int keypadKey, String name, final boolean increase) {
+        getInputMap(JComponent.WHEN_FOCUSED).put(KeyStroke.getKeyStroke(key, 0), name);
+        getInputMap(JComponent.WHEN_FOCUSED).put(KeyStroke.getKeyStroke(keypadKey, 0), name);
+        getActionMap().put(name, new AbstractAction() {
+
+            private static final long serialVersionUID = 1L;
+
+            public void actionPerformed(ActionEvent e) {
+                for(int row : getSelectedRows()) {
+                    if(increase) {
+                        model.increase(convertRowIndexToModel(row));
+                    } else {
+                        model.decrease(convertRowIndexToModel(row));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Paints minus, the stars and plus of whatever row it is asked for
+     */
+    private static class LevelRenderer extends JComponent implements TableCellRenderer {
+
+        private static final long serialVersionUID = 1L;
+
+        private int level;
+        private int shards;
+
+        public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected, boolean hasFocus, int row, int column) {
+            PonyLevel ponyLevel = (PonyLevel) value;
+            this.level = ponyLevel.getLevel();
+            this.shards = ponyLevel.getShards();
+
+            setOpaque(true);
+            setBackground(isSelected ? table.getSelectionBackground() : table.getBackground());
+            return this;
+        }
+
+        @Override
+        public void paintComponent(Graphics g) {
+            g.setColor(getBackground());
+            g.fillRect(0, 0, getWidth(), getHeight());
+
+            int y = (getHeight() - STAR_SIZE) / 2;
+
+            g.drawImage(minusIcon, MINUS_X, y, STAR_SIZE, STAR_SIZE, null);
+            for(int i = 0; i < PonyLevel.MAX_LEVEL; i++) {
+
+                if(level > i) {
+                    g.drawImage(starIcon, STARS_X + STAR_SIZE * i, y, STAR_SIZE, STAR_SIZE, null);
+                } else if(level == i && shards == PonyLevel.MAX_SHARDS) {
+                    g.drawImage(starBlueIcon, STARS_X + STAR_SIZE * i, y, STAR_SIZE, STAR_SIZE, null);
+                } else {
+                    g.drawImage(starEmptyIcon, STARS_X + STAR_SIZE * i, y, STAR_SIZE, STAR_SIZE, null);
+                }
+            }
+            g.drawImage(plusIcon, PLUS_X, y, STAR_SIZE, STAR_SIZE, null);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package equestria.canterlot.lunasdreamwalk.editor;
+
+import javax.swing.table.AbstractTableModel;
+import equestria.canterlot.lunasdreamwalk.edit.PonyLevel;
+import equestria.canterlot.lunasdreamwalk.edit.SaveEdits;
+import equestria.canterlot.lunasdreamwalk.edit.SaveModel;
+
+/**
+ * The levels of all ponies, kept in plain arrays instead of one panel per
+ * pony. A PonyTable shows them and only paints the rows that are visible.
+ *
+ * Currently only the "stars" can be changed.
+ *
+ */
+public class PonyTableModel extends AbstractTableModel implements InputElement {
+
+    /**
+     *
+     */
+    private static final long serialVersionUID = 3940187556105123816L;
+
+    public static final int NAME_COLUMN = 0;
+    public static final int LEVEL_COLUMN = 1;
+
+    private final SaveModel model;
+    private final int[] levels;
+    private final int[] shards;
+    private final int[] xp;
+
+    /**
+     * Create a model for all ponies of a savegame. The rows are in the same
+     * order as the ponies of the SaveModel.
+     *
+     * @param model
+     *            The savegame that this model edits
+     */
+    public PonyTableModel(SaveModel model) {
+        this.model = model;
+        this.levels = new int[model.getPonyCount()];
+        this.shards = new int[levels.length];
+        this.xp = new int[levels.length];
+    }
+
+    public int getRowCount() {
+        return levels.length;
+    }
+
+    public int getColumnCount() {
+        return 2;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return column == NAME_COLUMN ? "Pony" : "Level";
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return column == NAME_COLUMN ? String.class : PonyLevel.class;
+    }
+
+    public Object getValueAt(int row, int column) {
+        if(column == NAME_COLUMN) {
+            return getPonyName(row);
+        }
+
+        return PonyLevel.sanitized(levels[row], shards[row], xp[row]);
+    }
+
+    /**
+     * Parse the Id into something more appropriate to show to the user
+     */
+    public String getPonyName(int row) {
+        return model.getPonyId(row).replace("Pony_", "").replaceAll("_", " ");
+    }
+
+    private void setLevel(int row, int level) {
+        levels[row] = level > PonyLevel.MAX_LEVEL ? PonyLevel.MAX_LEVEL : (level < 0 ? 0 : level);
+    }
+
+    private void setShards(int row, int shards) {
+        this.shards[row] = shards > PonyLevel.MAX_SHARDS ? PonyLevel.MAX_SHARDS : (shards < 0 ? 0 : shards);
+    }
+
+    /**
+     * Continue from the values as they are shown. Out of range values are
+     * only adjusted once a pony is changed, so opening the table alone
+     * doesn't change the savegame.
+     */
+    private void sanitize(int row) {
+        PonyLevel level = PonyLevel.sanitized(levels[row], shards[row], xp[row]);
+        levels[row] = level.getLevel();
+        shards[row] = level.getShards();
+        xp[row] = level.getXP();
+    }
+
+    /**
+     * One step up: a full (blue) star becomes a real one, otherwise the next
+     * star is filled with shards
+     */
+    public void increase(int row) {
+        sanitize(row);
+        if(shards[row] == PonyLevel.MAX_SHARDS) {
+            setShards(row, 0);
+            setLevel(row, levels[row] + 1);
+        } else if(levels[row] < PonyLevel.MAX_LEVEL) {
+            setShards(row, PonyLevel.MAX_SHARDS);
+        }
+        // always set XP to 0 to avoid conflicts
+        xp[row] = 0;
+
+        fireTableCellUpdated(row, LEVEL_COLUMN);
+    }
+
+    /**
+     * One step down: a full (blue) star is emptied, otherwise the last star
+     * becomes a full one
+     */
+    public void decrease(int row) {
+        sanitize(row);
+        if(shards[row] == PonyLevel.MAX_SHARDS) {
+            setShards(row, 0);
+        } else if(levels[row] > 0) {
+            setLevel(row, levels[row] - 1);
+            setShards(row, PonyLevel.MAX_SHARDS);
+        }
+        // always set XP to 0 to avoid conflicts
+        xp[row] = 0;
+
+        fireTableCellUpdated(row, LEVEL_COLUMN);
+    }
+
+    private boolean isDirty(int row) {
+        return levels[row] != model.getPonyLevel(row) || shards[row] != model.getPonyShards(row) || xp[row] != model.getPonyXP(row);
+    }
+
+    public boolean isDirty() {
+        for(int row = 0; row < levels.length; row++) {
+            if(isDirty(row)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Record the ponies whose level was changed
+     */
+    public void apply(SaveEdits changes) {
+        for(int row = 0; row < levels.length; row++) {
+            if(!isDirty(row)) {
+                continue;
+            }
+
+            // sanity checks, in case we missed some illegal settings before
+            changes.setPonyLevel(model.getPonyId(row), PonyLevel.sanitized(levels[row], shards[row], xp[row]));
+        }
+    }
+
+    public void reset() {
+        for(int row = 0; row < levels.length; row++) {
+            levels[row] = model.getPonyLevel(row);
+            shards[row] = model.getPonyShards(row);
+            xp[row] = model.getPonyXP(row);
+        }
+
+        fireTableDataChanged();
+    }
+
+    public String name() {
+        return "Ponies";
+    }
+}
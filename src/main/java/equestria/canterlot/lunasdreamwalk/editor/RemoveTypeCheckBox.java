@@ -1,16 +1,15 @@
 package equestria.canterlot.lunasdreamwalk.editor;
 
+import java.util.Map;
 import javax.swing.JCheckBox;
-import javax.xml.xpath.XPathExpressionException;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import equestria.canterlot.lunasdreamwalk.SimpleEditor;
+import equestria.canterlot.lunasdreamwalk.edit.CleanupRule;
+import equestria.canterlot.lunasdreamwalk.edit.SaveEdits;
+import equestria.canterlot.lunasdreamwalk.edit.SaveModel;
 
 /**
- * The RemoveTypeCheckBox will offer to remove all child nodes of a
- * specified node. It's name will also contain the number of nodes that
- * currently exist.
+ * The RemoveTypeCheckBox will offer to remove all objects of a container of
+ * the SaveModel, from every map zone. It's name will also contain the number
+ * of objects that currently exist, the tooltip the number in each zone.
  * 
  */
 public class RemoveTypeCheckBox extends JCheckBox implements InputElement {
@@ -19,51 +18,48 @@ public class RemoveTypeCheckBox extends JCheckBox implements InputElement {
      * 
      */
     private static final long serialVersionUID = 1749170444373429283L;
-    private SimpleEditor editor;
+    private SaveModel model;
     private String name;
-    private String xmlPath;
+    private int container;
 
     /**
-     * @param editor
-     *            The editor that this element is part of
+     * @param model
+     *            The savegame that this element edits
      * @param name
-     *            A short name for the elements that will be removed.
-     * @param nodeTag
-     *            The tag of the parent node that would get all its children
-     *            removed
-     * @throws XPathExpressionException 
+     *            A short name for the objects that will be removed.
+     * @param container
+     *            The container that would get all its objects removed, e.g.
+     *            SaveModel.CLEARABLE_OBJECTS
      */
-    public RemoveTypeCheckBox(SimpleEditor editor, String name, String xmlPath) throws XPathExpressionException {
-        this.editor = editor;
+    public RemoveTypeCheckBox(SaveModel model, String name, int container) {
+        this.model = model;
         this.name = name;
-        this.xmlPath = xmlPath;
-
-        reset();
+        this.container = container;
     }
 
-    public void reset() throws XPathExpressionException {
-        Element e = editor.getXMLElementByString(this.xmlPath);
-        int amount = 0;
-
-        NodeList nl = e.getChildNodes();
-        amount = nl.getLength();
+    public void reset() {
+        int amount = Math.max(model.getObjectCount(this.container), 0);
 
         this.name = "Remove " + amount + " " + this.name;
 
+        StringBuilder zones = new StringBuilder("<html>");
+        for(Map.Entry<String, Integer> zone : model.getObjectCounts(this.container).entrySet()) {
+            zones.append("Zone ").append(zone.getKey()).append(": ").append(zone.getValue()).append("<br>");
+        }
+        this.setToolTipText(amount == 0 ? null : zones.toString());
+    }
+
+    public boolean isDirty() {
+        return this.isSelected() && !model.isRemoved(this.container);
     }
 
-    public void apply() throws XPathExpressionException {
+    public void apply(SaveEdits changes) {
 
         if(!this.isSelected()) {
             return;
         }
 
-        Element e = editor.getXMLElementByString(this.xmlPath);
-        
-        Node child = null;
-        while((child = e.getFirstChild()) != null) {
-            e.removeChild(child);
-        }
+        changes.addCleanup(new CleanupRule(SaveModel.getContainerType(this.container)));
     }
 
     public String name() {
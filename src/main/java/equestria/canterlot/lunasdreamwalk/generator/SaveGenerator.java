@@ -0,0 +1,193 @@
+package equestria.canterlot.lunasdreamwalk.generator;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import equestria.canterlot.lunasdreamwalk.edit.PonyLevel;
+import equestria.canterlot.lunasdreamwalk.util.ByteSink;
+import equestria.canterlot.lunasdreamwalk.util.SaveFileAdapter;
+import equestria.canterlot.lunasdreamwalk.xml.MarkupWriter;
+
+/**
+ * Builds synthetic savegames of any size, so benchmarks and stress tests
+ * don't depend on real device data.
+ *
+ * The xml has the structure the editor works with: PlayerData with its
+ * Shards, and MapZones with Pony_Objects, Clearable_Objects and
+ * Parasprite_Objects. It is written the way the editor itself would write
+ * it, so loading and storing a generated savegame without changes gives the
+ * same xml again. Values are random, but the same seed always gives the
+ * same savegame.
+ *
+ */
+public class SaveGenerator {
+
+    private static final String[] CLEARABLE_TYPES = { "Tree", "Rock", "Root" };
+
+    private int mapZones = 1;
+    private int ponies = 10;
+    private int clearables = 20;
+    private int parasprites = 5;
+    private long seed = 0;
+
+    /**
+     * @param mapZones
+     *            the number of MapZone elements, at least 1
+     */
+    public void setMapZones(int mapZones) {
+        this.mapZones = Math.max(mapZones, 1);
+    }
+
+    /**
+     * @param ponies
+     *            the total number of ponies, spread over all map zones
+     */
+    public void setPonies(int ponies) {
+        this.ponies = Math.max(ponies, 0);
+    }
+
+    /**
+     * @param clearables
+     *            the number of Clearable_Objects per map zone
+     */
+    public void setClearables(int clearables) {
+        this.clearables = Math.max(clearables, 0);
+    }
+
+    /**
+     * @param parasprites
+     *            the number of Parasprite_Objects per map zone
+     */
+    public void setParasprites(int parasprites) {
+        this.parasprites = Math.max(parasprites, 0);
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @return a rough estimate of the xml size in bytes
+     */
+    public long estimatedSize() {
+        return 256 + mapZones * 128L + ponies * 96L + mapZones * (clearables * 40L + parasprites * 28L);
+    }
+
+    /**
+     * Generate the xml content, including the padding at the end
+     *
+     * @return the xml content as single byte characters
+     */
+    public ByteSink generateXML() {
+        Random random = new Random(seed);
+
+        long estimate = estimatedSize();
+        ByteSink out = new ByteSink((int) Math.min(estimate, Integer.MAX_VALUE - 16));
+        MarkupWriter xml = new MarkupWriter(out);
+
+        xml.startElement("MLP_Save");
+        xml.attribute("Version", "3");
+
+        xml.startElement("PlayerData");
+        xml.attribute("Coins", Integer.toString(random.nextInt(1000000)));
+        xml.attribute("Hearts", Integer.toString(random.nextInt(1000)));
+        xml.attribute("Social", Integer.toString(random.nextInt(1000)));
+
+        xml.startElement("Shards");
+        for(String shard : new String[] { "Generosity", "Honesty", "Kindness", "Laughter", "Loyalty", "Magic" }) {
+            xml.attribute(shard, Integer.toString(random.nextInt(100)));
+        }
+        xml.endElement("Shards");
+        xml.endElement("PlayerData");
+
+        int pony = 0;
+        for(int zone = 0; zone < mapZones; zone++) {
+            xml.startElement("MapZone");
+            xml.attribute("ID", Integer.toString(zone));
+            xml.startElement("GameObjects");
+
+            // the ponies are spread evenly, the first zones get the rest
+            int zonePonies = ponies / mapZones + (zone < ponies % mapZones ? 1 : 0);
+            xml.startElement("Pony_Objects");
+            for(int i = 0; i < zonePonies; i++, pony++) {
+                writePony(xml, random, pony);
+            }
+            xml.endElement("Pony_Objects");
+
+            xml.startElement("Clearable_Objects");
+            for(int i = 0; i < clearables; i++) {
+                xml.startElement("Object");
+                xml.attribute("ID", CLEARABLE_TYPES[random.nextInt(CLEARABLE_TYPES.length)] + "_" + i);
+                xml.attribute("Pos", random.nextInt(200) + "," + random.nextInt(200));
+                xml.endElement("Object");
+            }
+            xml.endElement("Clearable_Objects");
+
+            xml.startElement("Parasprite_Objects");
+            for(int i = 0; i < parasprites; i++) {
+                xml.startElement("Object");
+                xml.attribute("ID", "Parasprite_" + i);
+                xml.endElement("Object");
+            }
+            xml.endElement("Parasprite_Objects");
+
+            xml.endElement("GameObjects");
+            xml.endElement("MapZone");
+        }
+
+        xml.endElement("MLP_Save");
+
+        SaveFileAdapter.appendPadding(out);
+        return out;
+    }
+
+    private static void writePony(MarkupWriter xml, Random random, int index) {
+        PonyLevel level = PonyLevel.sanitized(random.nextInt(PonyLevel.MAX_LEVEL + 1), random.nextInt(PonyLevel.MAX_SHARDS + 1), random.nextInt(500));
+
+        xml.startElement("Object");
+        xml.attribute("ID", "Pony_" + index);
+        xml.startElement("Game");
+        xml.startElement("Level");
+        xml.attribute("CurrentEXP", Integer.toString(level.getXP()));
+        xml.attribute("Level", Integer.toString(level.getLevel()));
+        xml.attribute("Shards", Integer.toString(level.getShards()));
+        xml.endElement("Level");
+        xml.endElement("Game");
+        xml.endElement("Object");
+    }
+
+    /**
+     * Generate a savegame and encrypt both layers
+     *
+     * @param key
+     *            the key of the outer encryption layer
+     * @return the complete file content
+     * @throws IOException
+     *             if the content can't be compressed
+     */
+    public byte[] generate(byte[] key) throws IOException {
+        ByteSink xml = generateXML();
+
+        // the file content is built from scratch when encrypting
+        SaveFileAdapter save = new SaveFileAdapter(new byte[0]);
+        save.setXMLContent(xml.buffer(), xml.size());
+        save.encryptSecondLayer();
+        save.setFirstKey(key);
+
+        if(!save.encryptFirstLayer()) {
+            throw new IOException("Couldn't compress the generated savegame");
+        }
+
+        return save.fileContent();
+    }
+
+    /**
+     * Generate a savegame and write it to a file
+     *
+     * @see #generate(byte[])
+     */
+    public void write(Path file, byte[] key) throws IOException {
+        Files.write(file, generate(key));
+    }
+}
@@ -0,0 +1,18 @@
+package equestria.canterlot.lunasdreamwalk.instrumentation;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Reading or writing a savegame file
+ *
+ */
+@Name("equestria.canterlot.lunasdreamwalk.FileIO")
+@Label("Savegame File I/O")
+@Description("Reading or writing a savegame file")
+class FileIOEvent extends PipelineEvent {
+
+    @Label("Path")
+    String path;
+}
@@ -0,0 +1,37 @@
+package equestria.canterlot.lunasdreamwalk.instrumentation;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * An input element of the editor applying its changes or resetting itself
+ *
+ */
+@Name("equestria.canterlot.lunasdreamwalk.InputElement")
+@Label("Input Element")
+@Description("An input element of the simple editor applying its changes or reading the xml")
+@Category("Luna's Dreamwalk")
+public class InputElementEvent extends Event {
+
+    @Label("Element")
+    private String element;
+
+    @Label("Action")
+    private String action;
+
+    /**
+     * Set the fields once the action is done
+     *
+     * @param element
+     *            the name of the input element
+     * @param action
+     *            "apply" or "reset"
+     */
+    public void set(String element, String action) {
+        this.element = element;
+        this.action = action;
+    }
+}
@@ -0,0 +1,24 @@
+package equestria.canterlot.lunasdreamwalk.instrumentation;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+
+/**
+ * The fields shared by all events of a Stage
+ *
+ */
+@Category("Luna's Dreamwalk")
+abstract class PipelineEvent extends Event {
+
+    @Label("Stage")
+    String stage;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Success")
+    boolean success;
+}
@@ -0,0 +1,122 @@
+package equestria.canterlot.lunasdreamwalk.instrumentation;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures a step of loading or storing a savegame. Every stage is recorded
+ * as a JDK Flight Recorder event and reported to the listeners registered by
+ * the thread that ends it. Work handed to other threads only reports to the
+ * same listeners if these threads register them, too.
+ *
+ * <pre>
+ * Stage stage = Stage.begin(&quot;decryptFirstLayer&quot;);
+ * ...
+ * stage.end(bytes, success);
+ * </pre>
+ *
+ */
+public class Stage {
+
+    private static final ThreadLocal<List<StageListener>> listeners = new ThreadLocal<List<StageListener>>() {
+
+        @Override
+        protected List<StageListener> initialValue() {
+            return new ArrayList<StageListener>();
+        }
+    };
+
+    private final String name;
+    private final PipelineEvent event;
+    private final long start;
+
+    private Stage(String name, PipelineEvent event) {
+        this.name = name;
+        this.event = event;
+
+        event.begin();
+        this.start = System.nanoTime();
+    }
+
+    /**
+     * Report the stages the current thread ends to a listener
+     */
+    public static void addListener(StageListener listener) {
+        listeners.get().add(listener);
+    }
+
+    public static void removeListener(StageListener listener) {
+        List<StageListener> current = listeners.get();
+        current.remove(listener);
+        if(current.isEmpty()) {
+            listeners.remove();
+        }
+    }
+
+    /**
+     * @return the listeners of the current thread, e.g. to register them in
+     *         the threads that work on its behalf
+     */
+    public static List<StageListener> getListeners() {
+        return new ArrayList<StageListener>(listeners.get());
+    }
+
+    /**
+     * Start measuring a stage
+     *
+     * @param name
+     *            the name of the stage
+     */
+    public static Stage begin(String name) {
+        return new Stage(name, new StageEvent());
+    }
+
+    /**
+     * Start measuring a stage that reads or writes a file
+     *
+     * @param name
+     *            the name of the stage
+     * @param file
+     *            the file that is read or written
+     */
+    public static Stage beginFile(String name, Path file) {
+        FileIOEvent event = new FileIOEvent();
+        event.path = file.toString();
+
+        return new Stage(name, event);
+    }
+
+    /**
+     * End a successful stage
+     *
+     * @see #end(long, boolean)
+     */
+    public void end(long bytes) {
+        end(bytes, true);
+    }
+
+    /**
+     * End the stage, record it and notify all listeners
+     *
+     * @param bytes
+     *            the number of bytes the stage read, produced or wrote
+     * @param success
+     *            false if the stage failed
+     */
+    public void end(long bytes, boolean success) {
+        long nanos = System.nanoTime() - start;
+
+        event.end();
+        if(event.shouldCommit()) {
+            event.stage = name;
+            event.bytes = bytes;
+            event.success = success;
+            event.commit();
+        }
+
+        for(StageListener listener : listeners.get()) {
+            listener.stageCompleted(name, nanos, bytes, success);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package equestria.canterlot.lunasdreamwalk.instrumentation;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A step of loading or storing a savegame, e.g. decrypting a layer
+ *
+ */
+@Name("equestria.canterlot.lunasdreamwalk.Stage")
+@Label("Savegame Stage")
+@Description("A step of loading or storing a savegame and the number of bytes it produced")
+class StageEvent extends PipelineEvent {
+}
@@ -0,0 +1,20 @@
+package equestria.canterlot.lunasdreamwalk.instrumentation;
+
+/**
+ * Gets notified whenever a Stage ends, e.g. to print a timing summary
+ *
+ */
+public interface StageListener {
+
+    /**
+     * @param stage
+     *            the name of the stage
+     * @param nanos
+     *            the wall time of the stage
+     * @param bytes
+     *            the number of bytes the stage read, produced or wrote
+     * @param success
+     *            false if the stage failed
+     */
+    public void stageCompleted(String stage, long nanos, long bytes, boolean success);
+}
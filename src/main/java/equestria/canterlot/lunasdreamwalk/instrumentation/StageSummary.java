@@ -0,0 +1,76 @@
+package equestria.canterlot.lunasdreamwalk.instrumentation;
+
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects the stages of one or more operations and sums them up per stage
+ * name, in the order they first occurred.
+ *
+ * <pre>
+ * StageSummary summary = new StageSummary();
+ * Stage.addListener(summary);
+ * try {
+ *     ...
+ * } finally {
+ *     Stage.removeListener(summary);
+ * }
+ * summary.print(System.out);
+ * </pre>
+ *
+ */
+public class StageSummary implements StageListener {
+
+    /**
+     * Per stage: count, nanos, bytes, failures
+     */
+    private final Map<String, long[]> stages = new LinkedHashMap<String, long[]>();
+
+    public synchronized void stageCompleted(String stage, long nanos, long bytes, boolean success) {
+        long[] sums = stages.get(stage);
+        if(sums == null) {
+            sums = new long[4];
+            stages.put(stage, sums);
+        }
+
+        sums[0]++;
+        sums[1] += nanos;
+        sums[2] += bytes;
+        if(!success) {
+            sums[3]++;
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return stages.isEmpty();
+    }
+
+    /**
+     * Print a table with the count, total time and bytes of each stage
+     */
+    public void print(PrintStream out) {
+        out.print(toString());
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format("%-24s %6s %12s %14s%n", "Stage", "Count", "Time (ms)", "Bytes"));
+
+        long total = 0;
+        for(Map.Entry<String, long[]> e : stages.entrySet()) {
+            long[] sums = e.getValue();
+            total += sums[1];
+
+            summary.append(String.format("%-24s %6d %12.2f %14d", e.getKey(), sums[0], sums[1] / 1e6, sums[2]));
+            if(sums[3] > 0) {
+                summary.append("  (").append(sums[3]).append(" failed)");
+            }
+            summary.append(String.format("%n"));
+        }
+
+        summary.append(String.format("%-24s %6s %12.2f%n", "Total", "", total / 1e6));
+        return summary.toString();
+    }
+}
@@ -0,0 +1,37 @@
+package equestria.canterlot.lunasdreamwalk.instrumentation;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A single XPath lookup of the DomIndex
+ *
+ */
+@Name("equestria.canterlot.lunasdreamwalk.XPathLookup")
+@Label("XPath Lookup")
+@Description("An XPath lookup of the DOM index")
+@Category("Luna's Dreamwalk")
+public class XPathLookupEvent extends Event {
+
+    @Label("Expression")
+    private String expression;
+
+    @Label("Compiled")
+    @Description("The expression wasn't cached yet and had to be compiled")
+    private boolean compiled;
+
+    @Label("Found")
+    private boolean found;
+
+    /**
+     * Set the fields once the lookup is done
+     */
+    public void set(String expression, boolean compiled, boolean found) {
+        this.expression = expression;
+        this.compiled = compiled;
+        this.found = found;
+    }
+}
@@ -0,0 +1,221 @@
+package equestria.canterlot.lunasdreamwalk.keys;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import equestria.canterlot.lunasdreamwalk.util.Util;
+
+/**
+ * A key that might belong to a device id the user typed, together with the
+ * interpretation it came from. Device ids are ambiguous: the same input can
+ * be an IMEI, a MEID in one of its forms or an Android_Id, and the key
+ * depends on the case of the letters.
+ *
+ */
+public class KeyCandidate {
+
+    private final String description;
+    private final String identifier;
+    private final byte[] key;
+
+    KeyCandidate(String description, String identifier, byte[] key) {
+        this.description = description;
+        this.identifier = identifier;
+        this.key = key;
+    }
+
+    /**
+     * @return what the input was taken for, e.g. "MEID (18 digits)"
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * @return the identifier the key was derived from
+     */
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    public byte[] getKey() {
+        return key.clone();
+    }
+
+    boolean hasKey(byte[] other) {
+        return Arrays.equals(key, other);
+    }
+
+    @Override
+    public String toString() {
+        return description + " " + identifier;
+    }
+
+    /**
+     * @param key
+     *            a key that was given as it is, e.g. as 32 hexadecimal digits
+     * @return the only candidate for that key
+     */
+    public static KeyCandidate forKey(byte[] key) {
+        return new KeyCandidate("Key", Util.byteArrayToHexString(key), key.clone());
+    }
+
+    /**
+     * Expand an input into every plausible key. The interpretation of
+     * KeyDerivation.deriveKeyFromIMEIorGLUID always comes first, the others
+     * follow without duplicate keys.
+     *
+     * @param input
+     *            the IMEI, MEID, Android_Id or GLUID as typed by the user
+     * @return the candidates, possibly none
+     */
+    public static List<KeyCandidate> expand(String input) {
+        String id = input.replaceAll("[^a-fA-F0-9]", "");
+        List<KeyCandidate> candidates = new ArrayList<KeyCandidate>();
+
+        byte[] derived = KeyDerivation.deriveKeyFromIMEIorGLUID(input);
+        if(derived != null) {
+            candidates.add(new KeyCandidate("As typed", id.length() >= 32 ? id.substring(0, 32) : id, derived));
+        }
+
+        int length = id.length();
+        boolean digits = id.matches("[0-9]*");
+
+        if(length >= 32) {
+            // a GLUID is 32 hexadecimal digits, extra characters may be
+            // around it on either side
+            addGLUID(candidates, "GLUID (first 32 digits)", id.substring(0, 32));
+            addGLUID(candidates, "GLUID (last 32 digits)", id.substring(length - 32));
+            return candidates;
+        }
+
+        if(length == 15 && digits) {
+            addAndroid(candidates, "IMEI", id);
+            // a MEID with its check digit
+            addMEID(candidates, id.substring(0, 14));
+        } else if(length == 14) {
+            addMEID(candidates, id);
+            if(digits) {
+                // an IMEI without its check digit
+                addAndroid(candidates, "IMEI (with check digit)", id + luhnCheckDigit(id));
+            }
+        } else if(length == 15) {
+            // a MEID with its check digit or an Android_Id without its
+            // leading zero
+            addMEID(candidates, id.substring(0, 14));
+            addCases(candidates, "Android_Id", id);
+            addCases(candidates, "Android_Id", "0" + id);
+        } else if(length == 18 && digits) {
+            addAndroid(candidates, "MEID (18 digits)", id);
+            String hex = meidDecimalToHex(id);
+            if(hex != null) {
+                addCases(candidates, "MEID (14 characters)", hex);
+            }
+        } else if(length == 16) {
+            addCases(candidates, "Android_Id", id);
+            if(id.charAt(0) == '0') {
+                // Android_Ids lose their leading zero on some devices
+                addCases(candidates, "Android_Id", id.substring(1));
+            }
+        } else if(length == 13) {
+            addCases(candidates, "Android_Id", id);
+        }
+
+        return candidates;
+    }
+
+    /**
+     * Add a MEID in its hexadecimal form with all cases and its decimal form
+     */
+    private static void addMEID(List<KeyCandidate> candidates, String hex) {
+        addCases(candidates, "MEID (14 characters)", hex);
+
+        String decimal = meidHexToDecimal(hex);
+        if(decimal != null) {
+            addAndroid(candidates, "MEID (18 digits)", decimal);
+        }
+    }
+
+    /**
+     * The key depends on the case of the letters, so try it as typed, in
+     * upper case and in lower case
+     */
+    private static void addCases(List<KeyCandidate> candidates, String description, String id) {
+        addAndroid(candidates, description, id);
+        addAndroid(candidates, description, id.toUpperCase(Locale.ROOT));
+        addAndroid(candidates, description, id.toLowerCase(Locale.ROOT));
+    }
+
+    private static void addAndroid(List<KeyCandidate> candidates, String description, String id) {
+        add(candidates, new KeyCandidate(description, id, KeyDerivation.createAndroidKey(id)));
+    }
+
+    private static void addGLUID(List<KeyCandidate> candidates, String description, String id) {
+        add(candidates, new KeyCandidate(description, id, Util.hexStringToByteArray(id)));
+    }
+
+    private static void add(List<KeyCandidate> candidates, KeyCandidate candidate) {
+        for(KeyCandidate c : candidates) {
+            if(c.hasKey(candidate.key)) {
+                return;
+            }
+        }
+
+        candidates.add(candidate);
+    }
+
+    /**
+     * Convert a MEID from 14 hexadecimal characters to 18 digits: 8
+     * characters of manufacturer code become 10 digits, 6 characters of
+     * serial number become 8 digits.
+     *
+     * @return the decimal form or null if the input isn't hexadecimal
+     */
+    static String meidHexToDecimal(String hex) {
+        if(!hex.matches("[a-fA-F0-9]{14}")) {
+            return null;
+        }
+
+        long manufacturer = Long.parseLong(hex.substring(0, 8), 16);
+        long serial = Long.parseLong(hex.substring(8), 16);
+
+        return String.format("%010d%08d", manufacturer, serial);
+    }
+
+    /**
+     * Convert a MEID from 18 digits to 14 hexadecimal characters
+     *
+     * @return the upper case hexadecimal form or null if the digits are out
+     *         of range
+     */
+    static String meidDecimalToHex(String decimal) {
+        long manufacturer = Long.parseLong(decimal.substring(0, 10));
+        long serial = Long.parseLong(decimal.substring(10));
+
+        if(manufacturer > 0xFFFFFFFFL || serial > 0xFFFFFFL) {
+            return null;
+        }
+
+        return String.format("%08X%06X", manufacturer, serial);
+    }
+
+    /**
+     * The check digit of an IMEI, calculated with the Luhn algorithm
+     */
+    static int luhnCheckDigit(String digits) {
+        int sum = 0;
+        for(int i = 0; i < digits.length(); i++) {
+            int digit = digits.charAt(digits.length() - 1 - i) - '0';
+            if(i % 2 == 0) {
+                digit *= 2;
+                if(digit > 9) {
+                    digit -= 9;
+                }
+            }
+            sum += digit;
+        }
+
+        return (10 - sum % 10) % 10;
+    }
+}
@@ -0,0 +1,72 @@
+package equestria.canterlot.lunasdreamwalk.keys;
+
+import equestria.canterlot.lunasdreamwalk.util.Util;
+
+/**
+ * Calculates the key of the outer encryption layer from a device id. This
+ * doesn't need any GUI, so it can be used by the command line tools as well.
+ *
+ */
+public class KeyDerivation {
+
+    private KeyDerivation() {
+    }
+
+    /**
+     * Calculate an encryption key from IMEI, MEID, Android_Id or GLUID
+     *
+     * @return the key or null if the input is none of the known formats
+     */
+    public static byte[] deriveKeyFromIMEIorGLUID(String imeiOrGLUID) {
+
+        String withoutSpecialCharacters = imeiOrGLUID.replaceAll("[^a-fA-F0-9]", "");
+
+        // probably GLUID (at least 32 hexadecimal)
+        if(withoutSpecialCharacters.length() >= 32) {
+            withoutSpecialCharacters = withoutSpecialCharacters.substring(0, 32);
+            return Util.hexStringToByteArray(withoutSpecialCharacters);
+        }
+        // probably an IMEI (15 digits)
+        else if(withoutSpecialCharacters.length() == 15 && withoutSpecialCharacters.matches("[0-9]+")) {
+            return createAndroidKey(withoutSpecialCharacters);
+        }
+        // probably a MEID (14 hexadecimal)
+        else if(withoutSpecialCharacters.length() == 14) {
+            return createAndroidKey(withoutSpecialCharacters);
+        }
+        // probably a MEID (alternative 18 digits representation)
+        else if(withoutSpecialCharacters.length() == 18 && withoutSpecialCharacters.matches("[0-9]+")) {
+            return createAndroidKey(withoutSpecialCharacters);
+        }
+        // probably an Android_Id (16 hexadecimal)
+        else if(withoutSpecialCharacters.length() == 16) {
+            return createAndroidKey(withoutSpecialCharacters);
+        }
+        // Not parseable
+        else {
+            return null;
+        }
+    }
+
+    /**
+     * Calculate the key that the Android version of the game derives from a
+     * device id
+     */
+    public static byte[] createAndroidKey(String input) {
+        byte[] key2 = Util.md5(Util.stringToASCIIByteArray(input + "com.gameloft.android.ANMP.GloftPOHM"));
+
+        int[] ints = Util.bytesToInts(Util.reorderBytes(key2));
+        int[] newInts = new int[ints.length];
+        for(int i = 0; i < ints.length; i++) {
+            if(ints[i % 3] < 0) {
+                newInts[i] = 0x7FFFFFFF - ints[i];
+            } else {
+                newInts[i] = ints[i];
+            }
+        }
+
+        ints = newInts;
+
+        return Util.intsToBytes(ints);
+    }
+}
@@ -0,0 +1,124 @@
+package equestria.canterlot.lunasdreamwalk.keys;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import equestria.canterlot.lunasdreamwalk.instrumentation.Stage;
+import equestria.canterlot.lunasdreamwalk.util.SaveFileAdapter;
+import equestria.canterlot.lunasdreamwalk.util.XXTEA;
+
+/**
+ * Finds the key of a savegame among all candidates of a device id, by
+ * probing them concurrently. The candidates are dealt to one batch per
+ * processor, and each batch probes its keys one after the other in a single
+ * scratch buffer. The first candidate that passes the probe wins, the
+ * remaining batches are cancelled.
+ *
+ */
+public class KeyResolver {
+
+    private final ExecutorService executor;
+    private final int batches;
+
+    /**
+     * Probe on the common fork join pool
+     */
+    public KeyResolver() {
+        this(ForkJoinPool.commonPool(), ForkJoinPool.commonPool().getParallelism());
+    }
+
+    /**
+     * @param executor
+     *            runs the probes
+     * @param batches
+     *            how many batches of candidates are probed at the same time
+     */
+    public KeyResolver(ExecutorService executor, int batches) {
+        this.executor = executor;
+        this.batches = Math.max(1, batches);
+    }
+
+    /**
+     * Find the key of a savegame for a device id as typed by the user
+     *
+     * @param save
+     *            the savegame, which isn't changed
+     * @param input
+     *            the IMEI, MEID, Android_Id or GLUID
+     * @return the matching candidate or null if none fits
+     * @throws InterruptedException
+     *             if the thread was interrupted while waiting for the probes
+     */
+    public KeyCandidate resolve(SaveFileAdapter save, String input) throws InterruptedException {
+        return resolve(save, KeyCandidate.expand(input));
+    }
+
+    /**
+     * Find the key of a savegame among some candidates
+     *
+     * @param save
+     *            the savegame, which isn't changed
+     * @param candidates
+     *            the keys to probe
+     * @return the matching candidate or null if none fits
+     * @throws InterruptedException
+     *             if the thread was interrupted while waiting for the probes
+     */
+    public KeyCandidate resolve(final SaveFileAdapter save, List<KeyCandidate> candidates) throws InterruptedException {
+        if(candidates.isEmpty()) {
+            return null;
+        }
+
+        // deal round robin, so the first candidates of every batch are the
+        // most likely ones
+        int count = Math.min(batches, candidates.size());
+        List<Callable<KeyCandidate>> probes = new ArrayList<Callable<KeyCandidate>>();
+        for(int i = 0; i < count; i++) {
+            final List<KeyCandidate> batch = new ArrayList<KeyCandidate>();
+            for(int j = i; j < candidates.size(); j += count) {
+                batch.add(candidates.get(j));
+            }
+
+            probes.add(new Callable<KeyCandidate>() {
+
+                public KeyCandidate call() throws WrongKeyException, InterruptedException {
+                    byte[] scratch = new byte[save.probeScratchSize()];
+                    for(KeyCandidate candidate : batch) {
+                        if(Thread.interrupted()) {
+                            throw new InterruptedException();
+                        }
+
+                        if(save.probeKey(new XXTEA(candidate.getKey()), scratch)) {
+                            return candidate;
+                        }
+                    }
+
+                    throw new WrongKeyException();
+                }
+            });
+        }
+
+        Stage stage = Stage.begin("resolveKey");
+        KeyCandidate result = null;
+        try {
+            result = executor.invokeAny(probes);
+        } catch(ExecutionException e) {
+            // all probes failed
+        } finally {
+            stage.end((long) save.payloadEncryptedSize() * candidates.size(), result != null);
+        }
+
+        return result;
+    }
+
+    /**
+     * Makes invokeAny() skip a batch without a fitting key
+     */
+    private static class WrongKeyException extends Exception {
+
+        private static final long serialVersionUID = -4839207146733902719L;
+    }
+}
@@ -0,0 +1,338 @@
+package equestria.canterlot.lunasdreamwalk.keys;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import equestria.canterlot.lunasdreamwalk.util.SaveFileAdapter;
+import equestria.canterlot.lunasdreamwalk.util.Util;
+
+/**
+ * Remembers the keys of all devices whose savegames were opened before, so
+ * nobody has to type their ids again. Only the derived keys are stored, in a
+ * small binary file, never the device ids themselves.
+ *
+ * A savegame is matched in two steps. Files the keyring has seen before, e.g.
+ * because they were written by the editor, are recognized by a fingerprint of
+ * their first and last bytes without any decryption. The fingerprint can't
+ * help with a savegame the game has written since, because the encryption
+ * changes every byte of it. Such a file has to be probed, and a probe
+ * decrypts the whole payload (see SaveFileAdapter.probeKey), so the keys
+ * that were used last are probed first (see getRecentKeys) and the older
+ * ones only if none of them fits.
+ *
+ * File format, big endian: magic "LDKR", version, number of keys, each key
+ * with its 16 bytes, number of fingerprints, each fingerprint with the index
+ * of its key. Version 1 also had the id each key was derived from.
+ *
+ */
+public class Keyring {
+
+    private static final int MAGIC = 0x4C444B52;
+    private static final int VERSION = 2;
+    private static final int KEY_SIZE = 16;
+
+    /**
+     * Oldest fingerprints are dropped beyond this, only the keys are kept
+     */
+    private static final int MAX_FINGERPRINTS = 10000;
+
+    /**
+     * How many keys are probed first for a savegame that isn't recognized
+     */
+    public static final int MAX_PROBED_KEYS = 16;
+
+    /**
+     * How many bytes of the payload go into a fingerprint from each end
+     */
+    private static final int FINGERPRINT_BYTES = 64;
+
+    private static final String DESCRIPTION = "Keyring";
+
+    private final Path file;
+    private final List<KeyCandidate> keys = new ArrayList<KeyCandidate>();
+    private final Map<Long, Integer> fingerprints = new LinkedHashMap<Long, Integer>();
+
+    private Keyring(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the keyring in the home directory of the user
+     */
+    public static Path defaultLocation() {
+        return Paths.get(System.getProperty("user.home"), ".lunasdreamwalk.keyring");
+    }
+
+    /**
+     * Load a keyring
+     *
+     * @param file
+     *            the keyring file, which doesn't need to exist yet
+     * @return the keyring, empty if the file doesn't exist
+     * @throws IOException
+     *             if the file can't be read or isn't a keyring, or if a
+     *             version 1 keyring can't be rewritten without its ids
+     */
+    public static Keyring load(Path file) throws IOException {
+        Keyring keyring = new Keyring(file);
+
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+        } catch(NoSuchFileException e) {
+            return keyring;
+        }
+
+        int version;
+        try {
+            if(in.readInt() != MAGIC) {
+                throw new IOException("Not a keyring: " + file);
+            }
+
+            version = in.readInt();
+            if(version != 1 && version != VERSION) {
+                throw new IOException("Not a keyring: " + file);
+            }
+
+            int keyCount = in.readInt();
+            for(int i = 0; i < keyCount; i++) {
+                byte[] key = new byte[KEY_SIZE];
+                in.readFully(key);
+                if(version == 1) {
+                    in.readUTF();
+                }
+                keyring.keys.add(candidate(key));
+            }
+
+            int fingerprintCount = in.readInt();
+            for(int i = 0; i < fingerprintCount; i++) {
+                long fingerprint = in.readLong();
+                int index = in.readInt();
+                if(index < 0 || index >= keyCount) {
+                    throw new IOException("Corrupt keyring: " + file);
+                }
+                keyring.fingerprints.put(fingerprint, index);
+            }
+        } finally {
+            in.close();
+        }
+
+        if(version == 1) {
+            // drop the ids right away instead of the next time a key is added
+            keyring.save();
+        }
+
+        return keyring;
+    }
+
+    /**
+     * Write the keyring back to its file. The old file is only replaced once
+     * the new one is complete.
+     *
+     * @throws IOException
+     *             if the file can't be written
+     */
+    public void save() throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(directory, ".keyring", ".tmp");
+
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+
+                out.writeInt(keys.size());
+                for(KeyCandidate key : keys) {
+                    out.write(key.getKey());
+                }
+
+                out.writeInt(fingerprints.size());
+                for(Map.Entry<Long, Integer> fingerprint : fingerprints.entrySet()) {
+                    out.writeLong(fingerprint.getKey());
+                    out.writeInt(fingerprint.getValue());
+                }
+            } finally {
+                out.close();
+            }
+
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Add a key, unless it is stored already
+     *
+     * @param key
+     *            the 16 bytes of the key
+     * @return the index of the key
+     */
+    public int add(byte[] key) {
+        if(key.length != KEY_SIZE) {
+            throw new IllegalArgumentException("A key has " + KEY_SIZE + " bytes, not " + key.length);
+        }
+
+        int index = indexOf(key);
+        if(index < 0) {
+            index = keys.size();
+            keys.add(candidate(key.clone()));
+        }
+
+        return index;
+    }
+
+    /**
+     * Add a key and remember that it belongs to a savegame, so the savegame
+     * is found without probing next time
+     *
+     * @param save
+     *            the savegame with its current, encrypted content
+     * @param key
+     *            the 16 bytes of the key
+     */
+    public void remember(SaveFileAdapter save, byte[] key) {
+        int index = add(key);
+
+        Long fingerprint = fingerprint(save);
+        // re-insert, so the fingerprint counts as the newest one
+        fingerprints.remove(fingerprint);
+        fingerprints.put(fingerprint, index);
+
+        Iterator<Long> oldest = fingerprints.keySet().iterator();
+        while(fingerprints.size() > MAX_FINGERPRINTS) {
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    /**
+     * Recognize a savegame the keyring has seen before, without decrypting
+     * anything
+     *
+     * @param save
+     *            the savegame
+     * @return the key that was remembered for it or null, then the keys
+     *         have to be probed
+     */
+    public KeyCandidate recognize(SaveFileAdapter save) {
+        Integer index = fingerprints.get(fingerprint(save));
+        return index == null ? null : keys.get(index);
+    }
+
+    /**
+     * The identifier of a stored key is the key itself, it is a valid GLUID
+     * that derives to the same key
+     */
+    private static KeyCandidate candidate(byte[] key) {
+        return new KeyCandidate(DESCRIPTION, Util.byteArrayToHexString(key), key);
+    }
+
+    private int indexOf(byte[] key) {
+        for(int i = 0; i < keys.size(); i++) {
+            if(keys.get(i).hasKey(key)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return the stored keys in the order they were added
+     */
+    public List<KeyCandidate> getKeys() {
+        return Collections.unmodifiableList(keys);
+    }
+
+    /**
+     * The keys worth probing for a savegame that isn't recognized: the keys
+     * of the newest fingerprints first, then keys without a fingerprint, the
+     * newest first
+     *
+     * @param max
+     *            how many keys to return at most
+     * @return at most max keys, without duplicates
+     */
+    public List<KeyCandidate> getRecentKeys(int max) {
+        List<Integer> newestFirst = new ArrayList<Integer>(fingerprints.values());
+        Collections.reverse(newestFirst);
+        for(int i = keys.size() - 1; i >= 0; i--) {
+            newestFirst.add(i);
+        }
+
+        Set<Integer> seen = new HashSet<Integer>();
+        List<KeyCandidate> recent = new ArrayList<KeyCandidate>();
+        for(Integer index : newestFirst) {
+            if(recent.size() >= max) {
+                break;
+            }
+
+            if(seen.add(index)) {
+                recent.add(keys.get(index));
+            }
+        }
+
+        return recent;
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Hash header, size and both ends of the encrypted payload. XXTEA spreads
+     * every change over the whole payload, so both ends together identify the
+     * content.
+     */
+    static long fingerprint(SaveFileAdapter save) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        digest.update(save.header());
+
+        ByteBuffer payload = save.payload();
+        int length = payload.remaining();
+        if(length <= 2 * FINGERPRINT_BYTES) {
+            digest.update(payload);
+        } else {
+            ByteBuffer start = payload.duplicate();
+            start.limit(start.position() + FINGERPRINT_BYTES);
+            digest.update(start);
+
+            payload.position(payload.limit() - FINGERPRINT_BYTES);
+            digest.update(payload);
+        }
+
+        digest.update(save.trailer());
+
+        return ByteBuffer.wrap(digest.digest()).getLong();
+    }
+}
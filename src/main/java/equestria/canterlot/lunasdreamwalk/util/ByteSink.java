@@ -0,0 +1,151 @@
+package equestria.canterlot.lunasdreamwalk.util;
+
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * A growable byte buffer that gives access to its internal array, so the
+ * written data can be used without copying it into a new array first.
+ *
+ */
+public class ByteSink extends OutputStream {
+
+    private byte[] buf;
+    private int count;
+
+    /**
+     * @param size
+     *            the initial capacity, which should be the expected size to
+     *            avoid growing the buffer
+     */
+    public ByteSink(int size) {
+        this.buf = new byte[Math.max(size, 16)];
+    }
+
+    private void ensureCapacity(int capacity) {
+        if(capacity > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(capacity, buf.length << 1));
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 1);
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    /**
+     * Write characters by chopping off the first byte of each of them, just
+     * like Util.stringToASCIIByteArray does.
+     *
+     * @param chars
+     *            the array that holds the characters
+     * @param off
+     *            the offset of the first character
+     * @param len
+     *            the number of characters
+     */
+    public void write(char[] chars, int off, int len) {
+        ensureCapacity(count + len);
+        for(int i = 0; i < len; i++) {
+            buf[count++] = (byte) chars[off + i];
+        }
+    }
+
+    /**
+     * Write a String by chopping off the first byte of each character.
+     *
+     * @param text
+     *            the String to write
+     */
+    public void write(String text) {
+        write(text, 0, text.length());
+    }
+
+    /**
+     * Write a part of a String by chopping off the first byte of each
+     * character.
+     *
+     * @param text
+     *            the String that holds the characters
+     * @param off
+     *            the offset of the first character
+     * @param len
+     *            the number of characters
+     */
+    public void write(String text, int off, int len) {
+        ensureCapacity(count + len);
+        for(int i = 0; i < len; i++) {
+            buf[count++] = (byte) text.charAt(off + i);
+        }
+    }
+
+    /**
+     * @return a Writer that writes its characters into this sink as single
+     *         bytes
+     */
+    public Writer asWriter() {
+        return new Writer() {
+
+            @Override
+            public void write(int c) {
+                ByteSink.this.write(c);
+            }
+
+            @Override
+            public void write(char[] cbuf, int off, int len) {
+                ByteSink.this.write(cbuf, off, len);
+            }
+
+            @Override
+            public void write(String str, int off, int len) {
+                ByteSink.this.write(str, off, len);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * @return the number of bytes written so far
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Forget all written bytes, but keep the buffer for reuse
+     */
+    public void reset() {
+        count = 0;
+    }
+
+    /**
+     * @return the internal buffer. Only the first size() bytes are valid, and
+     *         it is replaced by a new one if the sink has to grow.
+     */
+    public byte[] buffer() {
+        return buf;
+    }
+
+    /**
+     * @return a copy of the written bytes
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, count);
+    }
+}
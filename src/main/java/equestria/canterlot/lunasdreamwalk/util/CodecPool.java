@@ -0,0 +1,153 @@
+package equestria.canterlot.lunasdreamwalk.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A bounded pool of zlib codecs. Every Deflater and Inflater holds native
+ * memory that is only freed by end() or, much later, by the garbage
+ * collector. The pool reuses idle codecs and ends the ones it can't keep, so
+ * the native memory stays bounded even when many savegames are processed.
+ *
+ * Borrowed codecs must be released in a finally block.
+ *
+ */
+public class CodecPool {
+
+    private static final CodecPool SHARED = new CodecPool(Runtime.getRuntime().availableProcessors());
+
+    private final BlockingQueue<Deflater> deflaters;
+    private final BlockingQueue<Inflater> inflaters;
+
+    private final AtomicInteger liveDeflaters = new AtomicInteger();
+    private final AtomicInteger liveInflaters = new AtomicInteger();
+    private final AtomicLong createdDeflaters = new AtomicLong();
+    private final AtomicLong createdInflaters = new AtomicLong();
+
+    /**
+     * @param capacity
+     *            the maximum number of idle codecs of each kind
+     */
+    public CodecPool(int capacity) {
+        this.deflaters = new ArrayBlockingQueue<Deflater>(Math.max(capacity, 1));
+        this.inflaters = new ArrayBlockingQueue<Inflater>(Math.max(capacity, 1));
+    }
+
+    /**
+     * @return the pool that is used by Util.compress and Util.decompress
+     */
+    public static CodecPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * @return an idle Deflater with DEFAULT_COMPRESSION or a new one
+     */
+    public Deflater borrowDeflater() {
+        Deflater deflater = deflaters.poll();
+        if(deflater != null) {
+            return deflater;
+        }
+
+        liveDeflaters.incrementAndGet();
+        createdDeflaters.incrementAndGet();
+        return new Deflater(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Reset a Deflater and keep it for the next caller, or end it if the pool
+     * is full
+     */
+    public void release(Deflater deflater) {
+        deflater.reset();
+
+        if(!deflaters.offer(deflater)) {
+            deflater.end();
+            liveDeflaters.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return an idle Inflater or a new one
+     */
+    public Inflater borrowInflater() {
+        Inflater inflater = inflaters.poll();
+        if(inflater != null) {
+            return inflater;
+        }
+
+        liveInflaters.incrementAndGet();
+        createdInflaters.incrementAndGet();
+        return new Inflater();
+    }
+
+    /**
+     * Reset an Inflater and keep it for the next caller, or end it if the pool
+     * is full
+     */
+    public void release(Inflater inflater) {
+        inflater.reset();
+
+        if(!inflaters.offer(inflater)) {
+            inflater.end();
+            liveInflaters.decrementAndGet();
+        }
+    }
+
+    /**
+     * End all idle codecs, e.g. after a batch is done. Borrowed codecs are
+     * not affected.
+     */
+    public void clear() {
+        Deflater deflater;
+        while((deflater = deflaters.poll()) != null) {
+            deflater.end();
+            liveDeflaters.decrementAndGet();
+        }
+
+        Inflater inflater;
+        while((inflater = inflaters.poll()) != null) {
+            inflater.end();
+            liveInflaters.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of Deflaters that hold native memory, idle or
+     *         borrowed
+     */
+    public int getLiveDeflaters() {
+        return liveDeflaters.get();
+    }
+
+    /**
+     * @return the number of Inflaters that hold native memory, idle or
+     *         borrowed
+     */
+    public int getLiveInflaters() {
+        return liveInflaters.get();
+    }
+
+    /**
+     * @return the number of Deflaters that were ever created by this pool
+     */
+    public long getCreatedDeflaters() {
+        return createdDeflaters.get();
+    }
+
+    /**
+     * @return the number of Inflaters that were ever created by this pool
+     */
+    public long getCreatedInflaters() {
+        return createdInflaters.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Native codecs: " + getLiveDeflaters() + " deflaters (" + getCreatedDeflaters() + " created), " + getLiveInflaters() + " inflaters (" + getCreatedInflaters() + " created)";
+    }
+}
@@ -1,7 +1,18 @@
 package equestria.canterlot.lunasdreamwalk.util;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.util.Arrays;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import equestria.canterlot.lunasdreamwalk.instrumentation.Stage;
 
 /**
  * (More or less) transparently convert raw savegame data to String or back to
@@ -10,15 +21,46 @@ import java.util.Arrays;
  */
 public class SaveFileAdapter {
 
-    private byte[] rawData;
+    private static final int HEADER_SIZE = 12;
+    private static final int TRAILER_SIZE = 4;
+
+    /**
+     * The xml content of savegames ends with spaces, so no content gets lost
+     * when only whole words are encrypted
+     */
+    private static final byte[] PADDING = { ' ', ' ', ' ', ' ' };
+
+    private ByteBuffer rawData;
+    private final ByteBuffer loadedData;
     private byte[] decompressedContent;
-    private String xmlContent;
+    private int decompressedLength;
+    private byte[] xmlContent;
+    private int xmlLength;
 
-    private byte[] firstKey;
-    private byte[] secondKey;
+    private XXTEA firstKey;
+    private XXTEA secondKey;
 
     public SaveFileAdapter(byte[] fileContent) throws IOException {
-        this.rawData = fileContent;
+        this(ByteBuffer.wrap(fileContent));
+    }
+
+    /**
+     * Read a savegame file into memory. The file isn't kept open, so it can
+     * be overwritten while this adapter is used, e.g. by storing the edited
+     * savegame over it.
+     * 
+     * @param file
+     *            the savegame file
+     * @throws IOException
+     *             if the file can't be read or is too big
+     */
+    public SaveFileAdapter(Path file) throws IOException {
+        this(read(file));
+    }
+
+    private SaveFileAdapter(ByteBuffer rawData) {
+        this.rawData = rawData.order(ByteOrder.LITTLE_ENDIAN);
+        this.loadedData = this.rawData;
 
         // This key is derived in a complicated way by combining content of
         // two images and other shenanigans. Because it is identical on all
@@ -27,36 +69,90 @@ public class SaveFileAdapter {
         this.setSecondKey(Util.hexStringToByteArray("302A75507ACBD72F89504E4712901CF0"));
     }
 
+    private static ByteBuffer read(Path file) throws IOException {
+        Stage stage = Stage.beginFile("read file", file);
+        long size = 0;
+        boolean success = false;
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            size = channel.size();
+            if(size > Integer.MAX_VALUE) {
+                throw new IOException("File is too big: " + size + " bytes");
+            }
+
+            ByteBuffer content = ByteBuffer.allocate((int) size);
+            while(content.hasRemaining()) {
+                if(channel.read(content) < 0) {
+                    throw new IOException("File got shorter while it was read: " + file);
+                }
+            }
+            content.clear();
+
+            success = true;
+            return content;
+        } finally {
+            channel.close();
+            stage.end(size, success);
+        }
+    }
+
     public void setFirstKey(byte[] firstKey) {
-        this.firstKey = firstKey;
+        this.firstKey = new XXTEA(firstKey);
     }
 
     private void setSecondKey(byte[] secondKey) {
-        this.secondKey = secondKey;
+        this.secondKey = new XXTEA(secondKey);
     }
 
     public int getRawDataSize() {
-        return rawData.length;
+        return rawData.capacity();
+    }
+
+    public int payloadDecompressedSize() {
+        return rawData.getInt(0);
+    }
+
+    public int payloadCompressedSize() {
+        return rawData.getInt(4);
+    }
+
+    public int payloadEncryptedSize() {
+        return rawData.getInt(8);
     }
 
-    private int payloadDecompressedSize() {
-        return Util.parseInteger(rawData, 0);
+    public int getVersionNumber() {
+        return rawData.getInt(rawData.capacity() - TRAILER_SIZE);
     }
 
-    private int payloadCompressedSize() {
-        return Util.parseInteger(rawData, 4);
+    /**
+     * @return a read-only view of the header that holds the decompressed,
+     *         compressed and encrypted payload sizes
+     */
+    public ByteBuffer header() {
+        return slice(0, HEADER_SIZE);
     }
 
-    private int payloadEncryptedSize() {
-        return Util.parseInteger(rawData, 8);
+    /**
+     * @return a read-only view of the encrypted payload
+     */
+    public ByteBuffer payload() {
+        return slice(HEADER_SIZE, rawData.capacity() - TRAILER_SIZE);
     }
 
-    private byte[] payload() {
-        return Arrays.copyOfRange(rawData, 12, rawData.length - 4);
+    /**
+     * @return a read-only view of the trailer that holds the version number
+     */
+    public ByteBuffer trailer() {
+        return slice(rawData.capacity() - TRAILER_SIZE, rawData.capacity());
     }
 
-    private int getVersionNumber() {
-        return Util.parseInteger(rawData, rawData.length - 4);
+    private ByteBuffer slice(int from, int to) {
+        ByteBuffer view = rawData.asReadOnlyBuffer();
+        view.limit(to);
+        view.position(from);
+
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
     }
 
     /**
@@ -65,7 +161,66 @@ public class SaveFileAdapter {
      * 
      */
     public boolean sanityCheck() {
-        return getVersionNumber() == 1 && payloadDecompressedSize() > 0 && payloadCompressedSize() > 0 && payloadEncryptedSize() == payload().length;
+        Stage stage = Stage.begin("sanityCheck");
+
+        boolean valid = rawData.capacity() >= HEADER_SIZE + TRAILER_SIZE;
+        valid = valid && getVersionNumber() == 1 && payloadDecompressedSize() > 0 && payloadCompressedSize() > 0 && payloadEncryptedSize() == payload().remaining();
+
+        stage.end(rawData.capacity(), valid);
+        return valid;
+    }
+
+    /**
+     * Check if a key is plausible for this savegame, without decompressing
+     * anything or keeping the result. A false result is certain, a true
+     * result is almost certain, but only decryptFirstLayer() can tell for
+     * sure.
+     * 
+     * This is not a cheap test. XXTEA encrypts the whole payload as one block
+     * and every round feeds the last word back into the first one, so not
+     * even the zlib header can be recovered without decrypting the whole
+     * payload. A wrong key is only rejected before the inflater gets to work.
+     * 
+     * @param key
+     *            the key of the outer layer to test
+     * @return false if the key is certainly wrong
+     */
+    public boolean probeKey(byte[] key) {
+        return probeKey(new XXTEA(key), null);
+    }
+
+    /**
+     * Probe a key with a scratch buffer that is reused for several probes,
+     * so a wrong key doesn't cost a payload sized allocation each time
+     * 
+     * @param key
+     *            the key of the outer layer to test
+     * @param scratch
+     *            a buffer of at least probeScratchSize() bytes, which is
+     *            overwritten, or null to allocate one
+     * @return false if the key is certainly wrong
+     * @see #probeKey(byte[])
+     */
+    public boolean probeKey(XXTEA key, byte[] scratch) {
+        ByteBuffer payload = payload();
+        int length = payload.remaining();
+        if(scratch == null || scratch.length < probeScratchSize()) {
+            scratch = new byte[probeScratchSize()];
+        }
+
+        payload.get(scratch, 0, length);
+        key.decrypt(scratch, 0, length);
+
+        // the start of the stream is inflated behind the decrypted payload
+        return Util.isPlausibleZlibStream(scratch, 0, length, scratch, length);
+    }
+
+    /**
+     * @return the size of a scratch buffer for probeKey(): the payload and
+     *         the bytes a probe inflates
+     */
+    public int probeScratchSize() {
+        return rawData.capacity() - HEADER_SIZE - TRAILER_SIZE + Util.PROBE_OUTPUT;
     }
 
     /**
@@ -77,17 +232,34 @@ public class SaveFileAdapter {
      * compressed at all.
      */
     public boolean decryptFirstLayer() {
-        byte[] decrypted = Util.decrypt(payload(), firstKey);
+        Stage stage = Stage.begin("decryptFirstLayer");
+
+        // rawData is kept untouched, so the payload copy is decrypted in place
+        ByteBuffer payload = payload();
+        byte[] decrypted = new byte[payload.remaining()];
+        payload.get(decrypted);
+        firstKey.decrypt(decrypted, 0, decrypted.length);
+
+        // a wrong key is rejected before the inflater gets to work
+        if(!Util.isPlausibleZlibStream(decrypted, 0, decrypted.length)) {
+            stage.end(decrypted.length, false);
+            return false;
+        }
 
         byte[] decompressed;
 
         try {
-            decompressed = Util.decompress(decrypted);
+            // the header knows the exact size of the decompressed content
+            decompressed = Util.decompress(decrypted, payloadDecompressedSize());
         } catch(Exception e) {
+            stage.end(decrypted.length, false);
             return false;
         }
 
         this.decompressedContent = decompressed;
+        this.decompressedLength = decompressed.length;
+
+        stage.end(decompressed.length);
         return true;
     }
 
@@ -102,17 +274,50 @@ public class SaveFileAdapter {
             return false;
         }
 
-        byte[] decrypted = Util.decrypt(this.decompressedContent, secondKey);
+        Stage stage = Stage.begin("decryptSecondLayer");
 
-        String xmlContent = Util.ASCIIByteArrayToString(decrypted);
+        // Bytes that don't fill a whole word are not part of the encrypted
+        // content and get dropped
+        int length = this.decompressedLength & ~3;
+        secondKey.decrypt(this.decompressedContent, 0, length);
 
-        this.xmlContent = xmlContent;
+        // the buffer now holds plain text, it must not be decrypted again
+        this.xmlContent = this.decompressedContent;
+        this.xmlLength = length;
+        this.decompressedContent = null;
 
+        stage.end(length);
         return true;
     }
 
     public void setXMLContent(String xmlContent) {
+        this.setXMLContent(Util.stringToASCIIByteArray(xmlContent), xmlContent.length());
+    }
+
+    /**
+     * Append the padding that is expected at the end of the xml content
+     * 
+     * @param xmlContent
+     *            the generated xml content
+     */
+    public static void appendPadding(ByteSink xmlContent) {
+        xmlContent.write(PADDING, 0, PADDING.length);
+    }
+
+    /**
+     * Hand over a buffer with the xml content. The buffer is encrypted in
+     * place later on, so it must not be used by the caller afterwards. Only
+     * whole words are encrypted, so the content should already be padded
+     * accordingly.
+     * 
+     * @param xmlContent
+     *            a buffer that holds the xml content as single byte characters
+     * @param length
+     *            the number of used bytes in that buffer
+     */
+    public void setXMLContent(byte[] xmlContent, int length) {
         this.xmlContent = xmlContent;
+        this.xmlLength = length;
     }
 
     /**
@@ -125,9 +330,17 @@ public class SaveFileAdapter {
             return false;
         }
 
-        byte[] encrypted = Util.encrypt(Util.stringToASCIIByteArray(this.xmlContent.toString()), secondKey);
+        Stage stage = Stage.begin("encryptSecondLayer");
+
+        int length = this.xmlLength & ~3;
+        secondKey.encrypt(this.xmlContent, 0, length);
+
+        // the buffer now holds encrypted data, it isn't xml anymore
+        this.decompressedContent = this.xmlContent;
+        this.decompressedLength = length;
+        this.xmlContent = null;
 
-        this.decompressedContent = encrypted;
+        stage.end(length);
         return true;
     }
 
@@ -137,41 +350,148 @@ public class SaveFileAdapter {
      * 
      */
     public boolean encryptFirstLayer() {
+        Stage stage = Stage.begin("encryptFirstLayer");
 
         // first calculate checksum - will be needed later
-        byte[] crc32 = Util.reorderBytes(Util.CRC32(this.decompressedContent));
+        int crc32 = Util.CRC32Value(this.decompressedContent, 0, this.decompressedLength);
         byte[] compressed;
         try {
-            compressed = Util.compress(this.decompressedContent);
+            compressed = Util.compress(this.decompressedContent, 0, this.decompressedLength);
         } catch(Exception e) {
+            stage.end(this.decompressedLength, false);
             return false;
         }
 
-        byte[] newCompressed = new byte[compressed.length + 8 - (compressed.length + 4) % 4];
+        int encryptedLength = compressed.length + 8 - (compressed.length + 4) % 4;
 
-        System.arraycopy(compressed, 0, newCompressed, 0, compressed.length);
-        System.arraycopy(crc32, 0, newCompressed, compressed.length, 4);
+        // Build the full file content right away, the payload is then
+        // encrypted in place
+        byte[] content = new byte[HEADER_SIZE + encryptedLength + TRAILER_SIZE];
 
-        byte[] encrypted = Util.encrypt(newCompressed, firstKey);
+        Util.writeInteger(content, 0, this.decompressedLength);
+        Util.writeInteger(content, 4, compressed.length + 4);
+        Util.writeInteger(content, 8, encryptedLength);
+        System.arraycopy(compressed, 0, content, HEADER_SIZE, compressed.length);
+        Util.writeInteger(content, HEADER_SIZE + compressed.length, crc32);
+        Util.writeInteger(content, content.length - TRAILER_SIZE, 1);
 
-        // Now build the full file content
-        this.rawData = new byte[encrypted.length + 16];
+        firstKey.encrypt(content, HEADER_SIZE, encryptedLength);
 
-        Util.writeInteger(this.rawData, 0, this.decompressedContent.length);
-        Util.writeInteger(this.rawData, 4, compressed.length + 4);
-        Util.writeInteger(this.rawData, 8, encrypted.length);
-        System.arraycopy(encrypted, 0, this.rawData, 12, encrypted.length);
-        Util.writeInteger(this.rawData, this.rawData.length - 4, 1);
+        this.rawData = ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN);
 
+        stage.end(content.length);
         return true;
 
     }
 
+    /**
+     * Go back to the file content as it was loaded, e.g. to store a savegame
+     * that wasn't changed without encrypting it again.
+     */
+    public void restoreLoadedContent() {
+        this.rawData = this.loadedData;
+    }
+
+    /**
+     * Write the complete file content to a channel
+     * 
+     * @param channel
+     *            the channel, e.g. of the output file
+     * @throws IOException
+     */
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer content = this.rawData.duplicate();
+        content.clear();
+
+        while(content.hasRemaining()) {
+            channel.write(content);
+        }
+    }
+
+    /**
+     * Write the complete file content to a file. A temporary file next to it
+     * is written first and then moved over the file, so a failed write never
+     * leaves half a savegame behind.
+     * 
+     * @param file
+     *            the output file, which may be the file this adapter was
+     *            read from
+     * @throws IOException
+     */
+    public void writeFile(Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(directory, ".savegame", ".tmp");
+
+        try {
+            FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+            try {
+                writeTo(channel);
+            } finally {
+                channel.close();
+            }
+
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * @return the complete file content, without a copy
+     */
     public byte[] fileContent() {
-        return this.rawData;
+        return this.rawData.array();
     }
 
+    /**
+     * @return the xml content as a String. This is a full copy, use
+     *         getXMLStream() where possible.
+     */
     public String getXMLContent() {
-        return this.xmlContent;
+        if(this.xmlContent == null) {
+            return null;
+        }
+
+        return new String(this.xmlContent, 0, this.xmlLength, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Read the xml content directly from the decrypted bytes. Each byte is a
+     * single (ISO-8859-1) character. Whitespace and padding around the
+     * document are skipped, just like String.trim() would.
+     * 
+     * @return a stream of the xml content
+     */
+    public InputStream getXMLStream() {
+        ByteBuffer xml = getXMLBuffer();
+        if(xml == null) {
+            return null;
+        }
+
+        return new ByteArrayInputStream(xml.array(), xml.position(), xml.remaining());
+    }
+
+    /**
+     * Access the decrypted bytes of the xml content directly, without the
+     * whitespace and padding around the document.
+     * 
+     * @return a buffer whose remaining bytes are the xml content. It is
+     *         backed by the internal array, which is encrypted in place by
+     *         encryptSecondLayer().
+     */
+    public ByteBuffer getXMLBuffer() {
+        if(this.xmlContent == null) {
+            return null;
+        }
+
+        int start = 0, end = this.xmlLength;
+        while(start < end && (this.xmlContent[start] & 0xFF) <= ' ') {
+            start++;
+        }
+        while(end > start && (this.xmlContent[end - 1] & 0xFF) <= ' ') {
+            end--;
+        }
+
+        return ByteBuffer.wrap(this.xmlContent, start, end - start);
     }
 }
@@ -1,6 +1,5 @@
 package equestria.canterlot.lunasdreamwalk.util;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
@@ -82,9 +81,7 @@ public class Util {
 
     /**
      * An implementation of the XXTEA algorithm encrypt method. The input data
-     * and key are converted into integers with the bytesToInts method before
-     * the encryption and are converted back into byte arrays with the
-     * intsToBytes method after the encryption.
+     * is copied and then encrypted in place with an {@link XXTEA} instance.
      * 
      * Therefore the data array should have a length of a multiple of 4.
      * 
@@ -102,33 +99,15 @@ public class Util {
             return data;
         }
 
-        int[] s = Util.bytesToInts(data);
-        int[] g = Util.bytesToInts(Arrays.copyOfRange(key, 0, 16));
-
-        int d = s.length;
-        int j = s[d - 1], l = s[0];
-        int o = 0x9E3779B9;
-
-        int m, i, a = (int) Math.floor(6 + 52 / d);
-        int h = 0;
-        for(; a > 0; a--) {
-            h += o;
-            i = h >>> 2 & 3;
-            for(int b = 0; b < d; b++) {
-                l = s[(b + 1) % d];
-                m = (j >>> 5 ^ l << 2) + (l >>> 3 ^ j << 4) ^ (h ^ l) + (g[b & 3 ^ i] ^ j);
-                j = s[b] += m;
-            }
-        }
+        byte[] result = Arrays.copyOf(data, data.length & ~3);
+        new XXTEA(key).encrypt(result, 0, result.length);
 
-        return Util.intsToBytes(s);
+        return result;
     }
 
     /**
      * An implementation of the XXTEA algorithm decrypt method. The input data
-     * and key are converted into integers with the bytesToInts method before
-     * the decryption and are converted back into byte arrays with the
-     * intsToBytes method after the decryption.
+     * is copied and then decrypted in place with an {@link XXTEA} instance.
      * 
      * Therefore the data array should have a length of a multiple of 4.
      * 
@@ -147,31 +126,10 @@ public class Util {
             return data;
         }
 
-        int[] s = Util.bytesToInts(data);
-        int[] g = Util.bytesToInts(Arrays.copyOfRange(key, 0, 16));
+        byte[] result = Arrays.copyOf(data, data.length & ~3);
+        new XXTEA(key).decrypt(result, 0, result.length);
 
-        int d = s.length;
-        int j = s[d - 1], l = s[0];
-        int o = 0x9E3779B9;
-
-        int m, i, a = (int) Math.floor(6 + 52 / d);
-        int h = a * o;
-
-        boolean printed = false;
-        while(h != 0) {
-            i = (h >>> 2 & 3);
-            for(int c = d - 1; c >= 0; c--) {
-                j = s[c > 0 ? c - 1 : d - 1];
-                m = (j >>> 5 ^ l << 2) + (l >>> 3 ^ j << 4) ^ (h ^ l) + (g[(c & 3) ^ i] ^ j);
-                if(!printed) {
-                    printed = true;
-                }
-                l = s[c] -= m;
-            }
-            h -= o;
-        }
-
-        return Util.intsToBytes(s);
+        return result;
     }
 
     /**
@@ -227,22 +185,53 @@ public class Util {
      * @throws DataFormatException
      */
     public static byte[] compress(byte[] data) throws IOException, DataFormatException {
-        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
-        deflater.setInput(data);
-        deflater.finish();
-
-        ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length);
+        return compress(data, 0, data.length);
+    }
 
-        byte[] buffer = new byte[1024];
+    /**
+     * Compress a range of a byte array with the zlib "DEFAULT_COMPRESSION"
+     * algorithm
+     * 
+     * @param data
+     *            the array that holds the to be compressed data
+     * @param offset
+     *            the start of the data within the array
+     * @param length
+     *            the number of bytes to compress
+     * @return the compressed data
+     * @throws IOException
+     * @throws DataFormatException
+     */
+    public static byte[] compress(byte[] data, int offset, int length) throws IOException, DataFormatException {
+        CodecPool pool = CodecPool.shared();
+        Deflater deflater = pool.borrowDeflater();
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+
+            // enough for any input, so the data is compressed in one go
+            byte[] output = new byte[compressBound(length)];
+            int size = 0;
+            while(!deflater.finished()) {
+                if(size == output.length) {
+                    output = Arrays.copyOf(output, output.length + (output.length >> 1) + 64);
+                }
+                size += deflater.deflate(output, size, output.length - size);
+            }
 
-        while(!deflater.finished()) {
-            int bytesCompressed = deflater.deflate(buffer);
-            bos.write(buffer, 0, bytesCompressed);
+            return size == output.length ? output : Arrays.copyOf(output, size);
+        } finally {
+            pool.release(deflater);
         }
+    }
 
-        bos.close();
-
-        return bos.toByteArray();
+    /**
+     * The maximum size of zlib compressed data, the same as zlib's
+     * compressBound()
+     */
+    private static int compressBound(int length) {
+        long bound = (long) length + (length >> 12) + (length >> 14) + (length >> 25) + 13;
+        return (int) Math.min(bound, Integer.MAX_VALUE - 8);
     }
 
     /**
@@ -255,21 +244,139 @@ public class Util {
      * @throws DataFormatException
      */
     public static byte[] decompress(byte[] data) throws IOException, DataFormatException {
-        Inflater inflater = new Inflater();
-        inflater.setInput(data);
-
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length);
-        byte[] buffer = new byte[1024];
-        while(!inflater.finished()) {
-            int count = inflater.inflate(buffer);
-            outputStream.write(buffer, 0, count);
+        return decompress(data, data.length);
+    }
+
+    /**
+     * Decompress a byte array that got compressed with zlib into a buffer of
+     * the expected size, e.g. the decompressed size from a savegame header.
+     * The buffer only grows or gets trimmed if the expectation is wrong.
+     * 
+     * @param data
+     *            the compressed data
+     * @param expectedSize
+     *            the expected size of the uncompressed data
+     * @return the uncompressed data
+     * @throws IOException
+     * @throws DataFormatException
+     *             if the data is invalid or incomplete
+     */
+    public static byte[] decompress(byte[] data, int expectedSize) throws IOException, DataFormatException {
+        // zlib can't compress better than about 1:1032, so a bigger size
+        // can't be right and must not be allocated
+        long limit = (long) data.length * 1032 + 64;
+        byte[] output = new byte[(int) Math.max(Math.min(expectedSize, limit), 16)];
+        int size = 0;
+
+        CodecPool pool = CodecPool.shared();
+        Inflater inflater = pool.borrowInflater();
+        try {
+            inflater.setInput(data);
+
+            while(!inflater.finished()) {
+                if(size == output.length) {
+                    output = Arrays.copyOf(output, output.length + (output.length >> 1) + 64);
+                }
+
+                int count = inflater.inflate(output, size, output.length - size);
+                if(count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Incomplete compressed data");
+                }
+                size += count;
+            }
+        } finally {
+            pool.release(inflater);
+        }
+
+        return size == output.length ? output : Arrays.copyOf(output, size);
+    }
+
+    private static final int PROBE_INPUT = 512;
+
+    /**
+     * How many bytes isPlausibleZlibStream inflates at most
+     */
+    public static final int PROBE_OUTPUT = 256;
+
+    /**
+     * @see #isPlausibleZlibStream(byte[], int, int, byte[], int)
+     */
+    public static boolean isPlausibleZlibStream(byte[] data, int offset, int length) {
+        return isPlausibleZlibStream(data, offset, length, null, 0);
+    }
+
+    /**
+     * Check if data could be the start of a zlib stream, without inflating
+     * all of it: the zlib header must declare deflate without a preset
+     * dictionary and have a valid check value, and the first deflate block
+     * must have a valid type. A stored block must also have matching length
+     * fields, the start of a Huffman coded block must inflate without
+     * errors.
+     * 
+     * @param data
+     *            the array that holds the data
+     * @param offset
+     *            the start of the data within the array
+     * @param length
+     *            the number of bytes that belong to the data
+     * @param scratch
+     *            receives up to PROBE_OUTPUT inflated bytes, or null to
+     *            allocate a buffer if one is needed
+     * @param scratchOffset
+     *            where the inflated bytes go, they must not overlap the data
+     * @return false if the data is certainly not zlib compressed
+     */
+    public static boolean isPlausibleZlibStream(byte[] data, int offset, int length, byte[] scratch, int scratchOffset) {
+        if(length < 3) {
+            return false;
+        }
+
+        int cmf = data[offset] & 0xFF;
+        int flg = data[offset + 1] & 0xFF;
+
+        // deflate with a window of at most 32K, no dictionary, valid check
+        if((cmf & 0x0F) != 8 || (cmf >>> 4) > 7 || (flg & 0x20) != 0 || ((cmf << 8) | flg) % 31 != 0) {
+            return false;
+        }
+
+        // the bits of the first block header are read from the lowest bit
+        int block = data[offset + 2] & 0xFF;
+        int type = (block >>> 1) & 3;
+
+        if(type == 3) {
+            return false;
         }
-        outputStream.close();
-        byte[] output = outputStream.toByteArray();
 
-        inflater.end();
+        // a stored block continues at the next byte with LEN and its
+        // complement NLEN
+        if(type == 0) {
+            if(length < 7) {
+                return false;
+            }
+
+            int len = (data[offset + 3] & 0xFF) | (data[offset + 4] & 0xFF) << 8;
+            int nlen = (data[offset + 5] & 0xFF) | (data[offset + 6] & 0xFF) << 8;
+            return (len ^ nlen) == 0xFFFF;
+        }
 
-        return output;
+        // Huffman coded blocks are only checked by inflating a few bytes.
+        // Random data soon hits an invalid code or a distance that reaches
+        // back before the start.
+        CodecPool pool = CodecPool.shared();
+        Inflater inflater = pool.borrowInflater();
+        try {
+            inflater.setInput(data, offset, Math.min(length, PROBE_INPUT));
+            if(scratch == null) {
+                scratch = new byte[PROBE_OUTPUT];
+                scratchOffset = 0;
+            }
+            inflater.inflate(scratch, scratchOffset, PROBE_OUTPUT);
+            return true;
+        } catch(DataFormatException e) {
+            return false;
+        } finally {
+            pool.release(inflater);
+        }
     }
 
     /**
@@ -388,4 +495,22 @@ public class Util {
         return ByteBuffer.allocate(4).putInt((int) x.getValue()).array();
     }
 
+    /**
+     * Calculate a CRC32 checksum of a range of a byte array
+     * 
+     * @param data
+     *            the array that holds the data
+     * @param offset
+     *            the start of the data within the array
+     * @param length
+     *            the number of bytes to include
+     * @return the checksum as an integer
+     */
+    public static int CRC32Value(byte[] data, int offset, int length) {
+        java.util.zip.CRC32 x = new java.util.zip.CRC32();
+        x.update(data, offset, length);
+
+        return (int) x.getValue();
+    }
+
 }
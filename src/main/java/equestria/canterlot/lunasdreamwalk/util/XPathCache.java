@@ -0,0 +1,144 @@
+package equestria.canterlot.lunasdreamwalk.util;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import javax.xml.xpath.XPathVariableResolver;
+
+/**
+ * A bounded cache of compiled XPath expressions, keyed by their path string.
+ * Expressions can contain variables like $id, which are bound for a single
+ * evaluation only.
+ *
+ * Neither XPath nor its compiled expressions are thread safe, so an instance
+ * must only be used by a single thread.
+ *
+ */
+public class XPathCache {
+
+    private final XPath xpath;
+    private final Map<String, XPathExpression> expressions;
+    private final Map<QName, Object> variables = new HashMap<QName, Object>();
+
+    private long hits, misses;
+
+    /**
+     * @param capacity
+     *            the maximum number of compiled expressions to keep. The least
+     *            recently used one is dropped when it is exceeded.
+     */
+    public XPathCache(final int capacity) {
+        this.xpath = XPathFactory.newInstance().newXPath();
+        this.xpath.setXPathVariableResolver(new XPathVariableResolver() {
+
+            public Object resolveVariable(QName variableName) {
+                return variables.get(variableName);
+            }
+        });
+
+        this.expressions = new LinkedHashMap<String, XPathExpression>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, XPathExpression> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Get the compiled expression for a path, compiling it only if it isn't
+     * cached yet.
+     *
+     * @param location
+     *            the XPath expression
+     * @return the compiled expression
+     * @throws XPathExpressionException
+     *             if the expression is invalid
+     */
+    public XPathExpression get(String location) throws XPathExpressionException {
+        XPathExpression expression = expressions.get(location);
+
+        if(expression != null) {
+            hits++;
+            return expression;
+        }
+
+        misses++;
+        expression = xpath.compile(location);
+        expressions.put(location, expression);
+
+        return expression;
+    }
+
+    /**
+     * Evaluate a cached expression
+     *
+     * @param location
+     *            the XPath expression
+     * @param item
+     *            the context node, usually the document
+     * @param returnType
+     *            one of the XPathConstants types
+     * @return the result of the evaluation
+     * @throws XPathExpressionException
+     */
+    public Object evaluate(String location, Object item, QName returnType) throws XPathExpressionException {
+        return get(location).evaluate(item, returnType);
+    }
+
+    /**
+     * Evaluate a cached expression that contains a single variable
+     *
+     * @param location
+     *            the XPath expression, e.g. "/a/b[@ID=$id]"
+     * @param item
+     *            the context node, usually the document
+     * @param returnType
+     *            one of the XPathConstants types
+     * @param variable
+     *            the name of the variable without the '$'
+     * @param value
+     *            the value of the variable for this evaluation
+     * @return the result of the evaluation
+     * @throws XPathExpressionException
+     */
+    public Object evaluate(String location, Object item, QName returnType, String variable, Object value) throws XPathExpressionException {
+        XPathExpression expression = get(location);
+
+        QName name = new QName(variable);
+        variables.put(name, value);
+        try {
+            return expression.evaluate(item, returnType);
+        } finally {
+            variables.remove(name);
+        }
+    }
+
+    /**
+     * @return the number of lookups that found a compiled expression
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of lookups that had to compile the expression
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of currently cached expressions
+     */
+    public int size() {
+        return expressions.size();
+    }
+}
@@ -0,0 +1,159 @@
+package equestria.canterlot.lunasdreamwalk.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * A reusable XXTEA cipher that holds its key schedule and works in place on
+ * the data it is given. Nothing is allocated per call apart from a small
+ * buffer view, so large savegames can be encrypted and decrypted without
+ * copying them around.
+ *
+ * The savegame format stores all words little-endian, so byte based input is
+ * always viewed in that order, regardless of the order set on the buffer.
+ *
+ */
+public class XXTEA {
+
+    private static final int DELTA = 0x9E3779B9;
+
+    private final int[] key = new int[4];
+
+    /**
+     * @param key
+     *            a byte array of arbitrary size. if it is smaller than 16, the
+     *            rest will be filled with 0s, if it is bigger, only the first
+     *            16 bytes are used.
+     */
+    public XXTEA(byte[] key) {
+        for(int i = 0; i < 16 && i < key.length; i++) {
+            this.key[i >> 2] |= (key[i] & 0xFF) << ((i & 3) << 3);
+        }
+    }
+
+    /**
+     * Encrypt the words between position and limit of the buffer in place.
+     * The position of the buffer is not changed.
+     *
+     * @param data
+     *            the words to encrypt
+     */
+    public void encrypt(IntBuffer data) {
+        int p = data.position();
+        int d = data.limit() - p;
+
+        if(d == 0) {
+            return;
+        }
+
+        int[] g = this.key;
+        int last = p + d - 1;
+        int j = data.get(last), l;
+
+        int m, i, a = 6 + 52 / d;
+        int h = 0;
+        for(; a > 0; a--) {
+            h += DELTA;
+            i = h >>> 2 & 3;
+            int b = 0;
+            for(; b < d - 1; b++) {
+                l = data.get(p + b + 1);
+                m = (j >>> 5 ^ l << 2) + (l >>> 3 ^ j << 4) ^ (h ^ l) + (g[b & 3 ^ i] ^ j);
+                j = data.get(p + b) + m;
+                data.put(p + b, j);
+            }
+            // the last word wraps around to the first one
+            l = data.get(p);
+            m = (j >>> 5 ^ l << 2) + (l >>> 3 ^ j << 4) ^ (h ^ l) + (g[b & 3 ^ i] ^ j);
+            j = data.get(last) + m;
+            data.put(last, j);
+        }
+    }
+
+    /**
+     * Decrypt the words between position and limit of the buffer in place.
+     * The position of the buffer is not changed.
+     *
+     * @param data
+     *            the words to decrypt
+     */
+    public void decrypt(IntBuffer data) {
+        int p = data.position();
+        int d = data.limit() - p;
+
+        if(d == 0) {
+            return;
+        }
+
+        int[] g = this.key;
+        int last = p + d - 1;
+        int j, l = data.get(p);
+
+        int m, i, a = 6 + 52 / d;
+        int h = a * DELTA;
+
+        while(h != 0) {
+            i = (h >>> 2 & 3);
+            int c = d - 1;
+            for(; c > 0; c--) {
+                j = data.get(p + c - 1);
+                m = (j >>> 5 ^ l << 2) + (l >>> 3 ^ j << 4) ^ (h ^ l) + (g[(c & 3) ^ i] ^ j);
+                l = data.get(p + c) - m;
+                data.put(p + c, l);
+            }
+            // the first word wraps around to the last one
+            j = data.get(last);
+            m = (j >>> 5 ^ l << 2) + (l >>> 3 ^ j << 4) ^ (h ^ l) + (g[(c & 3) ^ i] ^ j);
+            l = data.get(p) - m;
+            data.put(p, l);
+            h -= DELTA;
+        }
+    }
+
+    /**
+     * Encrypt the bytes between position and limit of the buffer in place. If
+     * that range is not a multiple of 4 long, the remaining bytes are left
+     * untouched.
+     *
+     * @param data
+     *            the bytes to encrypt
+     */
+    public void encrypt(ByteBuffer data) {
+        encrypt(intView(data));
+    }
+
+    /**
+     * Decrypt the bytes between position and limit of the buffer in place. If
+     * that range is not a multiple of 4 long, the remaining bytes are left
+     * untouched.
+     *
+     * @param data
+     *            the bytes to decrypt
+     */
+    public void decrypt(ByteBuffer data) {
+        decrypt(intView(data));
+    }
+
+    /**
+     * Encrypt a range of a byte array in place.
+     *
+     * @see #encrypt(ByteBuffer)
+     */
+    public void encrypt(byte[] data, int offset, int length) {
+        encrypt(ByteBuffer.wrap(data, offset, length));
+    }
+
+    /**
+     * Decrypt a range of a byte array in place.
+     *
+     * @see #decrypt(ByteBuffer)
+     */
+    public void decrypt(byte[] data, int offset, int length) {
+        decrypt(ByteBuffer.wrap(data, offset, length));
+    }
+
+    private static IntBuffer intView(ByteBuffer data) {
+        return data.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+}
@@ -0,0 +1,100 @@
+package equestria.canterlot.lunasdreamwalk.xml;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.ProcessingInstruction;
+
+/**
+ * Writes a DOM through a MarkupWriter, producing the same bytes as an
+ * identity Transformer without the xml declaration. It visits the nodes the
+ * way the Transformer does: the document type is dropped, namespace
+ * declarations come before the other attributes and both keep the order of
+ * the element's attribute map.
+ *
+ * Nothing is copied into Strings on the way, so this is much faster than a
+ * Transformer and only allocates what the sink needs to grow. DomIndex
+ * writes savegames with it.
+ *
+ */
+public class MarkupDomWriter {
+
+    private final MarkupWriter out;
+
+    public MarkupDomWriter(MarkupWriter out) {
+        this.out = out;
+    }
+
+    /**
+     * Write a node and everything below it
+     *
+     * @param node
+     *            a Document, an Element or any other node
+     */
+    public void write(Node node) {
+        switch(node.getNodeType()) {
+        case Node.DOCUMENT_NODE:
+        case Node.DOCUMENT_FRAGMENT_NODE:
+        case Node.ENTITY_REFERENCE_NODE:
+            writeChildren(node);
+            break;
+        case Node.ELEMENT_NODE:
+            writeElement(node);
+            break;
+        case Node.TEXT_NODE:
+            out.text(node.getNodeValue());
+            break;
+        case Node.CDATA_SECTION_NODE:
+            out.cdata(node.getNodeValue());
+            break;
+        case Node.COMMENT_NODE:
+            out.comment(node.getNodeValue());
+            break;
+        case Node.PROCESSING_INSTRUCTION_NODE:
+            ProcessingInstruction pi = (ProcessingInstruction) node;
+            out.processingInstruction(pi.getTarget(), pi.getData());
+            break;
+        default:
+            // document type, entities and notations aren't written
+            break;
+        }
+    }
+
+    private void writeChildren(Node parent) {
+        for(Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            write(child);
+        }
+    }
+
+    private void writeElement(Node element) {
+        String name = element.getNodeName();
+        out.startElement(name);
+
+        NamedNodeMap attributes = element.getAttributes();
+        int count = attributes.getLength();
+
+        // namespace declarations first, like the Transformer
+        boolean declarations = false;
+        for(int i = 0; i < count; i++) {
+            Attr attribute = (Attr) attributes.item(i);
+            if(isNamespaceDeclaration(attribute.getName())) {
+                out.attribute(attribute.getName(), attribute.getValue());
+                declarations = true;
+            }
+        }
+
+        for(int i = 0; i < count; i++) {
+            Attr attribute = (Attr) attributes.item(i);
+            if(!declarations || !isNamespaceDeclaration(attribute.getName())) {
+                out.attribute(attribute.getName(), attribute.getValue());
+            }
+        }
+
+        writeChildren(element);
+        out.endElement(name);
+    }
+
+    private static boolean isNamespaceDeclaration(String name) {
+        return name.startsWith("xmlns") && (name.length() == 5 || name.charAt(5) == ':');
+    }
+}
@@ -0,0 +1,144 @@
+package equestria.canterlot.lunasdreamwalk.xml;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Characters;
+import javax.xml.stream.events.Comment;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.ProcessingInstruction;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * An XMLEventWriter that produces the same bytes as the Transformer would for
+ * a DOM of the same events, by handing them to a MarkupWriter. Like the DOM,
+ * it drops the xml declaration, the document type and whitespace outside of
+ * the root element.
+ *
+ * Names are written as they appear in the document, so the reader should not
+ * be namespace aware.
+ *
+ */
+public class MarkupEventWriter implements XMLEventWriter {
+
+    private static final Comparator<String[]> ORDER = new Comparator<String[]>() {
+
+        public int compare(String[] a, String[] b) {
+            return MarkupWriter.ATTRIBUTE_ORDER.compare(a[0], b[0]);
+        }
+    };
+
+    private final MarkupWriter out;
+    private final List<String[]> attributes = new ArrayList<String[]>();
+    private int depth = 0;
+
+    public MarkupEventWriter(MarkupWriter out) {
+        this.out = out;
+    }
+
+    public void add(XMLEvent event) throws XMLStreamException {
+        switch(event.getEventType()) {
+        case XMLEvent.START_ELEMENT:
+            startElement(event.asStartElement());
+            depth++;
+            break;
+        case XMLEvent.END_ELEMENT:
+            depth--;
+            out.endElement(name(event.asEndElement().getName()));
+            break;
+        case XMLEvent.CHARACTERS:
+        case XMLEvent.SPACE:
+        case XMLEvent.CDATA:
+            Characters characters = event.asCharacters();
+            if(depth == 0) {
+                break;
+            }
+
+            if(characters.isCData()) {
+                out.cdata(characters.getData());
+            } else {
+                out.text(characters.getData());
+            }
+            break;
+        case XMLEvent.COMMENT:
+            out.comment(((Comment) event).getText());
+            break;
+        case XMLEvent.PROCESSING_INSTRUCTION:
+            ProcessingInstruction pi = (ProcessingInstruction) event;
+            out.processingInstruction(pi.getTarget(), pi.getData());
+            break;
+        default:
+            // declaration, document type and end of document produce no
+            // output
+            break;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void startElement(StartElement element) {
+        out.startElement(name(element.getName()));
+
+        attributes.clear();
+        for(Iterator<Namespace> it = element.getNamespaces(); it.hasNext();) {
+            Namespace ns = it.next();
+            String prefix = ns.getPrefix();
+            attributes.add(new String[] { prefix == null || prefix.length() == 0 ? "xmlns" : "xmlns:" + prefix, ns.getNamespaceURI() });
+        }
+        for(Iterator<Attribute> it = element.getAttributes(); it.hasNext();) {
+            Attribute a = it.next();
+            attributes.add(new String[] { name(a.getName()), a.getValue() });
+        }
+
+        Collections.sort(attributes, ORDER);
+        for(String[] a : attributes) {
+            out.attribute(a[0], a[1]);
+        }
+    }
+
+    private static String name(QName name) {
+        String prefix = name.getPrefix();
+        if(prefix == null || prefix.length() == 0) {
+            return name.getLocalPart();
+        }
+
+        return prefix + ":" + name.getLocalPart();
+    }
+
+    public void add(XMLEventReader reader) throws XMLStreamException {
+        while(reader.hasNext()) {
+            add(reader.nextEvent());
+        }
+    }
+
+    public void flush() {
+    }
+
+    public void close() {
+    }
+
+    public String getPrefix(String uri) {
+        return null;
+    }
+
+    public void setPrefix(String prefix, String uri) {
+    }
+
+    public void setDefaultNamespace(String uri) {
+    }
+
+    public void setNamespaceContext(NamespaceContext context) {
+    }
+
+    public NamespaceContext getNamespaceContext() {
+        return null;
+    }
+}
@@ -0,0 +1,220 @@
+package equestria.canterlot.lunasdreamwalk.xml;
+
+import java.util.Comparator;
+import equestria.canterlot.lunasdreamwalk.util.ByteSink;
+
+/**
+ * Writes xml markup into a ByteSink exactly the way the JDK's identity
+ * Transformer does it for a parsed savegame, so output of this writer and
+ * output of the Transformer can be used interchangeably.
+ *
+ * That means: empty elements are written as "&lt;a/&gt;", attributes must be
+ * given in the order of ATTRIBUTE_ORDER, line breaks in text and CDATA are
+ * written as the platform line separator and the same characters are
+ * escaped. Characters are written as single bytes, just like
+ * Util.stringToASCIIByteArray does.
+ *
+ */
+public class MarkupWriter {
+
+    /**
+     * The order in which the DOM keeps attributes: namespace declarations
+     * first, the rest sorted by name.
+     */
+    public static final Comparator<String> ATTRIBUTE_ORDER = new Comparator<String>() {
+
+        public int compare(String a, String b) {
+            boolean nsA = isNamespaceDeclaration(a), nsB = isNamespaceDeclaration(b);
+
+            if(nsA != nsB) {
+                return nsA ? -1 : 1;
+            }
+
+            return a.compareTo(b);
+        }
+    };
+
+    private final ByteSink out;
+    private final String lineSeparator = System.getProperty("line.separator");
+    private boolean startTagOpen = false;
+
+    /**
+     * @param out
+     *            the sink that receives the markup
+     */
+    public MarkupWriter(ByteSink out) {
+        this.out = out;
+    }
+
+    private static boolean isNamespaceDeclaration(String name) {
+        return name.equals("xmlns") || name.startsWith("xmlns:");
+    }
+
+    private void closeStartTag() {
+        if(startTagOpen) {
+            out.write('>');
+            startTagOpen = false;
+        }
+    }
+
+    public void startElement(String name) {
+        closeStartTag();
+        out.write('<');
+        out.write(name);
+        startTagOpen = true;
+    }
+
+    /**
+     * Write an attribute of the element that was just started
+     */
+    public void attribute(String name, String value) {
+        out.write(' ');
+        out.write(name);
+        out.write('=');
+        out.write('"');
+        escape(value, true);
+        out.write('"');
+    }
+
+    /**
+     * End an element, which is written as an empty element if nothing has
+     * been written since it was started.
+     */
+    public void endElement(String name) {
+        if(startTagOpen) {
+            out.write('/');
+            out.write('>');
+            startTagOpen = false;
+            return;
+        }
+
+        out.write('<');
+        out.write('/');
+        out.write(name);
+        out.write('>');
+    }
+
+    public void text(String text) {
+        if(text.length() == 0) {
+            return;
+        }
+
+        closeStartTag();
+        escape(text, false);
+    }
+
+    /**
+     * Write text with all characters replaced that the Transformer would
+     * replace in attribute values or in text
+     */
+    private void escape(String text, boolean attribute) {
+        int start = 0, length = text.length();
+
+        for(int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            String replacement = attribute ? attributeReplacement(c) : textReplacement(c);
+            int consumed = 1;
+
+            if(replacement == null && Character.isHighSurrogate(c) && i + 1 < length) {
+                replacement = "&#" + Character.toCodePoint(c, text.charAt(i + 1)) + ";";
+                consumed = 2;
+            }
+
+            if(replacement == null) {
+                continue;
+            }
+
+            out.write(text, start, i - start);
+            out.write(replacement);
+            i += consumed - 1;
+            start = i + 1;
+        }
+
+        out.write(text, start, length - start);
+    }
+
+    private static String attributeReplacement(char c) {
+        switch(c) {
+        case '<':
+            return "&lt;";
+        case '>':
+            return "&gt;";
+        case '&':
+            return "&amp;";
+        case '"':
+            return "&quot;";
+        case '\n':
+            return "&#10;";
+        case '\r':
+            return "&#13;";
+        case '\t':
+            return "&#9;";
+        default:
+            return null;
+        }
+    }
+
+    private String textReplacement(char c) {
+        switch(c) {
+        case '<':
+            return "&lt;";
+        case '>':
+            return "&gt;";
+        case '&':
+            return "&amp;";
+        case '\n':
+            return lineSeparator;
+        case '\t':
+            return null;
+        default:
+            // control characters are always written as references
+            if(c < 0x20 || (c >= 0x7F && c <= 0x9F)) {
+                return "&#" + (int) c + ";";
+            }
+            return null;
+        }
+    }
+
+    public void cdata(String text) {
+        closeStartTag();
+        out.write("<![CDATA[");
+
+        int start = 0, length = text.length();
+        for(int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+
+            if(c == '\n') {
+                out.write(text, start, i - start);
+                out.write(lineSeparator);
+                start = i + 1;
+            } else if(c == ']' && text.startsWith("]]>", i)) {
+                // split the terminator into two sections
+                out.write(text, start, i + 2 - start);
+                out.write("]]><![CDATA[");
+                start = i + 2;
+                i++;
+            }
+        }
+        out.write(text, start, length - start);
+
+        out.write("]]>");
+    }
+
+    public void comment(String text) {
+        closeStartTag();
+        out.write("<!--");
+        out.write(text);
+        out.write("-->");
+    }
+
+    public void processingInstruction(String target, String data) {
+        closeStartTag();
+        out.write("<?");
+        out.write(target);
+        if(data != null && data.length() > 0) {
+            out.write(' ');
+            out.write(data);
+        }
+        out.write("?>");
+    }
+}